@@ -0,0 +1,254 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * Benchmark fixtures for the SyncPrimitive recipes, run against a ZooKeeper
+ * server inside the benchmark JVM. JMH refuses benchmarks in the default
+ * package and a named package cannot see SyncPrimitive, so
+ * bench.SyncPrimitiveBenchmark only sees these as Callable and
+ * AutoCloseable.
+ */
+public class SyncPrimitiveFixtures {
+
+    static final AtomicInteger roots = new AtomicInteger();
+    static String address;
+
+    /**
+     * Fresh root node, so runs never see each other's leftovers
+     */
+    static String root(String name) {
+        return "/bench-" + name + "-" + roots.incrementAndGet();
+    }
+
+    /**
+     * Start a standalone server on a free local port, once per JVM, and
+     * open the shared session
+     *
+     * @return
+     * @throws Exception
+     */
+    public static synchronized String start() throws Exception {
+        if (address == null) {
+            File dir = Files.createTempDirectory("zk-bench").toFile();
+            ServerSocket s = new ServerSocket(0);
+            int port = s.getLocalPort();
+            s.close();
+            ZooKeeperServer server = new ZooKeeperServer(dir, dir, 2000);
+            ServerCnxnFactory factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", port), 2000);
+            factory.startup(server);
+            address = "127.0.0.1:" + port;
+            SyncPrimitive.Queue q = new SyncPrimitive.Queue(address, root("connect"));
+            while (!q.zk.getState().isConnected()) {
+                Thread.sleep(10);
+            }
+        }
+        return address;
+    }
+
+    /**
+     * One produce and one consume per call, so the backlog stays constant
+     *
+     * @param backlog
+     * @return
+     * @throws Exception
+     */
+    public static Callable<Object> queue(int backlog) throws Exception {
+        final SyncPrimitive.Queue q = new SyncPrimitive.Queue(start(), root("queue"));
+        q.produceAll(new int[backlog], 0);
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                q.produce(1, 0);
+                return q.consume();
+            }
+        };
+    }
+
+    /**
+     * One produceAll and consumeBatch of batch elements per call
+     *
+     * @param backlog
+     * @param batch
+     * @return
+     * @throws Exception
+     */
+    public static Callable<Object> queueBatch(int backlog, final int batch) throws Exception {
+        final SyncPrimitive.Queue q = new SyncPrimitive.Queue(start(), root("queue"));
+        q.produceAll(new int[backlog], 0);
+        return new Callable<Object>() {
+            public Object call() throws Exception {
+                q.produceAll(new int[batch], 0);
+                int n = 0;
+                int last[][] = null;
+                while (n < batch) {
+                    last = q.consumeBatch(batch - n);
+                    n += last.length;
+                }
+                return last;
+            }
+        };
+    }
+
+    /**
+     * Lock acquire-to-release per call, while contenders - 1 background
+     * threads keep taking the same lock. Closing stops them.
+     */
+    public static class LockContention implements Callable<Object>, AutoCloseable {
+        String root;
+        SyncPrimitive.Queue q;
+        ExecutorService others;
+
+        LockContention(int contenders) throws Exception {
+            start();
+            root = root("lock");
+            q = new SyncPrimitive.Queue(address, root("lock-queue"));
+            others = Executors.newFixedThreadPool(Math.max(1, contenders - 1));
+            for (int i = 1; i < contenders; i++) {
+                others.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            while (true) {
+                                call();
+                            }
+                        } catch (InterruptedException e) {
+                            // Closed
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+
+        public Object call() throws Exception {
+            SyncPrimitive.Lock lock = new SyncPrimitive.Lock(address, root, 0, 0, new int[0], q);
+            try {
+                lock.lock(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                lock.unlock();
+            } finally {
+                lock.close();
+            }
+            return lock;
+        }
+
+        public void close() {
+            others.shutdownNow();
+            try {
+                others.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static LockContention lock(int contenders) throws Exception {
+        return new LockContention(contenders);
+    }
+
+    /**
+     * Each call sets up one barrier round on a fresh root and returns it;
+     * calling the round makes every participant enter and leave
+     */
+    public static class BarrierRounds implements Callable<Callable<Object>>, AutoCloseable {
+        int participants;
+        ExecutorService pool;
+
+        BarrierRounds(int participants) throws Exception {
+            start();
+            this.participants = participants;
+            this.pool = Executors.newFixedThreadPool(participants);
+        }
+
+        public Callable<Object> call() {
+            String root = root("barrier");
+            final SyncPrimitive.Barrier barriers[] = new SyncPrimitive.Barrier[participants];
+            for (int i = 0; i < participants; i++) {
+                barriers[i] = new SyncPrimitive.Barrier(address, root, participants);
+            }
+            return new Callable<Object>() {
+                public Object call() throws Exception {
+                    final CountDownLatch done = new CountDownLatch(barriers.length);
+                    for (final SyncPrimitive.Barrier b : barriers) {
+                        pool.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    b.enter();
+                                    b.leave();
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                                b.close();
+                                done.countDown();
+                            }
+                        });
+                    }
+                    done.await();
+                    return barriers;
+                }
+            };
+        }
+
+        public void close() {
+            pool.shutdownNow();
+        }
+    }
+
+    public static BarrierRounds barrier(int participants) throws Exception {
+        return new BarrierRounds(participants);
+    }
+
+    /**
+     * Each call elects a leader with one follower on a fresh root and
+     * returns the failover
+     *
+     * @return
+     * @throws Exception
+     */
+    public static Callable<Callable<Object>> election() throws Exception {
+        start();
+        return new Callable<Callable<Object>>() {
+            public Callable<Object> call() throws Exception {
+                return new Failover();
+            }
+        };
+    }
+
+    /**
+     * Calling it deletes the leader's election node, as when its session
+     * expires, and waits for the follower to take over. Closing stops the
+     * lease threads of both and leaves.
+     */
+    public static class Failover implements Callable<Object>, AutoCloseable {
+        SyncPrimitive.Leader leader;
+        SyncPrimitive.Leader follower;
+
+        Failover() throws Exception {
+            String root = root("election");
+            leader = new SyncPrimitive.Leader(address, root, root + "-leader", 0, "leader", new int[0], 0, 0, null);
+            follower = new SyncPrimitive.Leader(address, root, root + "-leader", 1, "follower", new int[0], 0, 0,
+                    null);
+            leader.elect();
+            follower.electAsync();
+        }
+
+        public Object call() throws Exception {
+            leader.delete(leader.pathName, -1);
+            return follower.elected.get();
+        }
+
+        public void close() {
+            leader.close();
+            follower.close();
+        }
+    }
+}
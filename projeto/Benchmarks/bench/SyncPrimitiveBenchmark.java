@@ -0,0 +1,168 @@
+package bench;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of Queue, Lock, Barrier and Leader against an in-process
+ * ZooKeeper server. Latencies are sampled, so JMH reports percentiles.
+ * The fixtures live in the default package next to SyncPrimitive and are
+ * looked up by name once per trial, outside the measured code.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncPrimitiveBenchmark {
+
+    static final int BATCH = 16;
+
+    @SuppressWarnings("unchecked")
+    static <T> T fixture(String name, Object... args) throws Exception {
+        for (Method m : Class.forName("SyncPrimitiveFixtures").getMethods()) {
+            if (m.getName().equals(name) && m.getParameterTypes().length == args.length) {
+                return (T) m.invoke(null, args);
+            }
+        }
+        throw new NoSuchMethodException(name);
+    }
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+        @Param({"0", "1000", "10000"})
+        int backlog;
+
+        Callable<Object> single;
+        Callable<Object> batch;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            single = fixture("queue", backlog);
+            batch = fixture("queueBatch", backlog, BATCH);
+        }
+    }
+
+    /**
+     * One produce and one consume at a constant backlog
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    public Object queueProduceConsume(QueueState s) throws Exception {
+        return s.single.call();
+    }
+
+    /**
+     * produceAll and consumeBatch of BATCH elements at a constant backlog
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OperationsPerInvocation(BATCH)
+    public Object queueProduceConsumeBatch(QueueState s) throws Exception {
+        return s.batch.call();
+    }
+
+    @State(Scope.Benchmark)
+    public static class LockState {
+        @Param({"1", "10", "100", "1000"})
+        int contenders;
+
+        Callable<Object> lock;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            lock = fixture("lock", contenders);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) lock).close();
+        }
+    }
+
+    /**
+     * Time from requesting the lock to having released it
+     */
+    @Benchmark
+    public Object lockAcquireRelease(LockState s) throws Exception {
+        return s.lock.call();
+    }
+
+    @State(Scope.Benchmark)
+    public static class BarrierState {
+        @Param({"2", "10", "100", "1000"})
+        int participants;
+
+        Callable<Callable<Object>> rounds;
+        Callable<Object> round;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            rounds = fixture("barrier", participants);
+        }
+
+        @Setup(Level.Invocation)
+        public void round() throws Exception {
+            round = rounds.call();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) rounds).close();
+        }
+    }
+
+    /**
+     * Time for every participant to enter and leave one barrier
+     */
+    @Benchmark
+    public Object barrierRound(BarrierState s) throws Exception {
+        return s.round.call();
+    }
+
+    @State(Scope.Thread)
+    public static class ElectionState {
+        Callable<Callable<Object>> elections;
+        Callable<Object> failover;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            elections = fixture("election");
+        }
+
+        @Setup(Level.Invocation)
+        public void elect() throws Exception {
+            failover = elections.call();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            ((AutoCloseable) failover).close();
+        }
+    }
+
+    /**
+     * Time from the leader's election node going away to the follower
+     * taking over
+     */
+    @Benchmark
+    public Object leaderFailover(ElectionState s) throws Exception {
+        return s.failover.call();
+    }
+}
@@ -0,0 +1,12 @@
+export ZK=/home/ufabc/Imagens/projeto/zookeeper/zookeeper-3.4.14
+echo "ZK=$ZK"
+export JMH=/home/ufabc/Imagens/projeto/jmh
+echo "JMH=$JMH"
+export CP_ZK=$ZK'/zookeeper-3.4.14.jar':$ZK'/lib/audience-annotations-0.5.0.jar':$ZK'/lib/slf4j-log4j12-1.7.25.jar':$ZK'/lib/slf4j-api-1.7.25.jar':$ZK'/lib/log4j-1.2.17.jar'
+export CP_JMH=$JMH'/jmh-core-1.21.jar':$JMH'/jmh-generator-annprocess-1.21.jar':$JMH'/jopt-simple-4.6.jar':$JMH'/commons-math3-3.2.jar'
+echo "CP=$CP_ZK:$CP_JMH"
+mkdir -p classes
+javac -cp $CP_ZK:$CP_JMH -d classes ../Codigos/SyncPrimitive.java *.java bench/*.java
+echo "***** SyncPrimitive benchmarks"
+# Extra arguments go to JMH, e.g. -p contenders=1,10 -p participants=100
+java -cp classes:$CP_ZK:$CP_JMH -Dlog4j.configuration=file:$ZK/conf/log4j.properties org.openjdk.jmh.Main bench.SyncPrimitiveBenchmark "$@"
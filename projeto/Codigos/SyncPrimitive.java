@@ -1,646 +1,7071 @@
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
-import java.util.List;
-import java.util.Random;
-import java.util.Arrays;
-
-import org.apache.zookeeper.CreateMode;
-import org.apache.zookeeper.KeeperException;
-import org.apache.zookeeper.WatchedEvent;
-import org.apache.zookeeper.Watcher;
-import org.apache.zookeeper.ZooKeeper;
-import org.apache.zookeeper.ZooDefs.Ids;
-import org.apache.zookeeper.data.Stat;
-
-public class SyncPrimitive implements Watcher {
-
-    static ZooKeeper zk = null;
-    static Integer mutex;
-
-    String root;
-
-    SyncPrimitive(String address) {
-        if(zk == null){
-            try {
-                System.out.println("Starting ZK:");
-                zk = new ZooKeeper(address, 3000, this);
-                mutex = new Integer(-1);
-                System.out.println("Finished starting ZK: " + zk);
-            } catch (IOException e) {
-                System.out.println(e.toString());
-                zk = null;
-            }
-        }
-        //else mutex = new Integer(-1);
-    }
-
-    synchronized public void process(WatchedEvent event) {
-        synchronized (mutex) {
-            //System.out.println("Process: " + event.getType());
-            mutex.notify();
-        }
-    }
-
-    /**
-     * Barrier
-     */
-    static public class Barrier extends SyncPrimitive {
-        int size;
-        String name;
-
-        /**
-         * Barrier constructor
-         *
-         * @param address
-         * @param root
-         * @param size
-         */
-        Barrier(String address, String root, int size) {
-            super(address);
-            this.root = root;
-            this.size = size;
-
-            // Create barrier node
-            if (zk != null) {
-                try {
-                    Stat s = zk.exists(root, false);
-                    if (s == null) {
-                        zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                    }
-                } catch (KeeperException e) {
-                    System.out
-                            .println("Keeper exception when instantiating queue: "
-                                    + e.toString());
-                } catch (InterruptedException e) {
-                    System.out.println("Interrupted exception");
-                }
-            }
-
-            // My node name
-            try {
-                name = new String(InetAddress.getLocalHost().getCanonicalHostName().toString());
-            } catch (UnknownHostException e) {
-                System.out.println(e.toString());
-            }
-
-        }
-
-        /**
-         * Join barrier
-         *
-         * @return
-         * @throws KeeperException
-         * @throws InterruptedException
-         */
-
-        boolean enter() throws KeeperException, InterruptedException{
-            zk.create(root + "/" + name, new byte[0], Ids.OPEN_ACL_UNSAFE,
-                    CreateMode.EPHEMERAL_SEQUENTIAL);
-            while (true) {
-                synchronized (mutex) {
-                    List<String> list = zk.getChildren(root, true);
-
-                    if (list.size() < size) {
-                        mutex.wait();
-                    } else {
-                        return true;
-                    }
-                }
-            }
-        }
-
-        /**
-         * Wait until all reach barrier
-         *
-         * @return
-         * @throws KeeperException
-         * @throws InterruptedException
-         */
-
-        boolean leave() throws KeeperException, InterruptedException{
-            zk.delete(root + "/" + name, 0);
-            while (true) {
-                synchronized (mutex) {
-                    List<String> list = zk.getChildren(root, true);
-                        if (list.size() > 0) {
-                            mutex.wait();
-                        } else {
-                            return true;
-                        }
-                    }
-                }
-        }
-    }
-
-    /**
-     * Producer-Consumer queue
-     */
-    static public class Queue extends SyncPrimitive {
-
-        /**
-         * Constructor of producer-consumer queue
-         *
-         * @param address
-         * @param name
-         */
-        Queue(String address, String name) {
-            super(address);
-            this.root = name;
-            // Create ZK node name
-            if (zk != null) {
-                try {
-                    Stat s = zk.exists(root, false);
-                    if (s == null) {
-                        zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                    }
-                } catch (KeeperException e) {
-                    System.out.println("Keeper exception when instantiating queue: " + e.toString());
-                } catch (InterruptedException e) {
-                    System.out.println("Interrupted exception");
-                }
-            }
-        }
-
-        /**
-         * Add element to the queue.
-         *
-         * @param i
-         * @return
-         */
-
-        boolean produce(int i, int id) throws KeeperException, InterruptedException{
-            ByteBuffer b = ByteBuffer.allocate(8);
-            byte[] value;
-
-            // Add child with value i
-            b.putInt(i);
-            b.putInt(id);
-            value = b.array();
-            zk.create(root + "/element", value, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL);
-
-            return true;
-        }
-
-
-        /**
-         * Remove first element from the queue.
-         *
-         * @return
-         * @throws KeeperException
-         * @throws InterruptedException
-         */
-        int[] consume() throws KeeperException, InterruptedException{
-            int ret[] = {-1, -1};
-            Stat stat = null;
-
-            // Get the first element available
-            while (true) {
-                synchronized (mutex) {
-                    List<String> list = zk.getChildren(root, true);
-                    if (list.size() == 0) {
-                        System.out.println("Going to wait");
-                        mutex.wait();
-                    } else {
-                        Integer min = new Integer(list.get(0).substring(7));
-                        System.out.println("List: "+list.toString());
-                        String minString = list.get(0);
-                        for(String s : list){
-                            Integer tempValue = new Integer(s.substring(7));
-                            //System.out.println("Temp value: " + tempValue);
-                            if(tempValue < min) { 
-                                min = tempValue;
-                                minString = s;
-                            }
-                        }
-                        System.out.println("Temporary value: " + root +"/"+ minString);
-                        byte[] b = zk.getData(root +"/"+ minString,false, stat);
-                        //System.out.println("b: " + Arrays.toString(b));     
-                        zk.delete(root +"/"+ minString, 0);
-                        ByteBuffer buffer = ByteBuffer.wrap(b);
-                        ret[0] = buffer.getInt();
-                        ret[1] = buffer.getInt();
-
-                        return ret;
-                    }
-                }
-            }
-        }
-    }
-
-    static public class Lock extends SyncPrimitive {
-        String pathName;
-        long wait;
-        int id;
-        int answers[];
-        Queue q;
-
-        /**
-        * Constructor of lock
-        *
-        * @param address
-        * @param name Name of the lock node
-        */
-        Lock(String address, String name, long waitTime, int id, int answers[], Queue q) {
-            super(address);
-            this.root = name;
-            this.wait = waitTime;
-            this.id = id;
-            this.answers = answers;
-            this.q = q;
-            // Create ZK node name
-            if (zk != null) {
-                try {
-                    Stat s = zk.exists(root, false);
-                    if (s == null) {
-                        zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                    }
-                } catch (KeeperException e) {
-                    System.out.println("Keeper exception when instantiating queue: " + e.toString());
-                } catch (InterruptedException e) {
-                    System.out.println("Interrupted exception");
-                }
-            }
-        }
-        
-        boolean lock() throws KeeperException, InterruptedException{
-            //Step 1
-            pathName = zk.create(root + "/lock-", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            System.out.println("My path name is: "+pathName);
-            //Steps 2 to 5
-            return testMin();
-        }
-        
-        boolean testMin() throws KeeperException, InterruptedException{
-            while (true) {
-             Integer suffix = new Integer(pathName.substring(12));
-                 //Step 2 
-                     List<String> list = zk.getChildren(root, false);
-                     Integer min = new Integer(list.get(0).substring(5));
-                     System.out.println("List: "+list.toString());
-                     String minString = list.get(0);
-                     for(String s : list){
-                         Integer tempValue = new Integer(s.substring(5));
-                         //System.out.println("Temp value: " + tempValue);
-                         if(tempValue < min)  {
-                             min = tempValue;
-                             minString = s;
-                         }
-                     }
-                    System.out.println("Suffix: "+suffix+", min: "+min);
-                   //Step 3
-                     if (suffix.equals(min)) {
-                        System.out.println("Lock acquired for "+minString+"!");
-                        return true;
-                    }
-                    //Step 4
-                    //Wait for the removal of the next lowest sequence number
-                    Integer max = min;
-                    String maxString = minString;
-                    for(String s : list){
-                        Integer tempValue = new Integer(s.substring(5));
-                        //System.out.println("Temp value: " + tempValue);
-                        if(tempValue > max && tempValue < suffix)  {
-                            max = tempValue;
-                            maxString = s;
-                        }
-                    }
-                    //Exists with watch
-                    Stat s = zk.exists(root+"/"+maxString, this);
-                    System.out.println("Watching "+root+"/"+maxString);
-                    //Step 5
-                    if (s != null) {
-                        //Wait for notification
-                        break;  
-                    }
-            }
-            System.out.println(pathName+" is waiting for a notification!");
-            return false;
-        }
-
-        synchronized public void process(WatchedEvent event) {
-            synchronized (mutex) {
-                String path = event.getPath();
-                if (event.getType() == Event.EventType.NodeDeleted) {
-                    System.out.println("Notification from "+path);
-                    try {
-                        if (testMin()) { //Step 5 (cont.) -> go to step 2 to check
-                            this.compute();
-                        } else {
-                            System.out.println("Not lowest sequence number! Waiting for a new notification.");
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }
-        
-        void compute() {
-            try {
-                System.out.println("I'm returning my essay, I'm student " + id + " (At lock)");
-                for (int i : this.answers){
-                    this.q.produce(i, id);
-                }
-                //Exits, which releases the ephemeral node (Unlock operation)
-                //zk.delete(pathName, -1);
-                System.out.println("Waiting for my score (Leaving lock)");
-                System.exit(0);
-
-            } catch (KeeperException e){
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    static public class Leader extends SyncPrimitive {
-    	String leader;
-    	String id; //Id of the leader
-    	String pathName;
-        String professor;
-        int answers[];
-        int number_students;
-        int number_questions;
-        Queue q;
-        
-    	
-   	 /**
-         * Constructor of Leader
-         *
-         * @param address
-         * @param name Name of the election node
-         * @param leader Name of the leader node
-         * 
-         */
-        Leader(String address, String name, String leader, int id, String professor, int answers[], int number_students, int number_questions, Queue q) {
-            super(address);
-            this.root = name;
-            this.leader = leader;
-            this.id = new Integer(id).toString();
-            this.professor = professor;
-            this.answers = answers;
-            this.number_students = number_students;
-            this.number_questions = number_questions;
-            this.q = q;
-            // Create ZK node name
-            if (zk != null) {
-                try {
-                	//Create election znode
-                    Stat s1 = zk.exists(root, false);
-                    if (s1 == null) {
-                        zk.create(root, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
-                    }  
-                    //Checking for a leader
-                    Stat s2 = zk.exists(leader, false);
-                    if (s2 != null) {
-                        byte[] idLeader = zk.getData(leader, false, s2);
-                        System.out.println("Current judge: " + professor);
-                    }  
-                    
-                } catch (KeeperException e) {
-                    System.out.println("Keeper exception when instantiating queue: " + e.toString());
-                } catch (InterruptedException e) {
-                    System.out.println("Interrupted exception");
-                }
-            }
-        }
-        
-        boolean elect() throws KeeperException, InterruptedException{
-        	this.pathName = zk.create(root + "/n-", new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
-            System.out.println("My name is: "+ professor);
-        	return check();
-        }
-        
-        boolean check() throws KeeperException, InterruptedException{
-        	Integer suffix = new Integer(pathName.substring(12));
-           	while (true) {
-        		List<String> list = zk.getChildren(root, false);
-        		Integer min = new Integer(list.get(0).substring(5));
-        		System.out.println("List: "+list.toString());
-        		String minString = list.get(0);
-        		for(String s : list){
-        			Integer tempValue = new Integer(s.substring(5));
-        			//System.out.println("Temp value: " + tempValue);
-        			if(tempValue < min)  {
-        				min = tempValue;
-        				minString = s;
-        			}
-        		}
-        		System.out.println("Suffix: "+suffix+", min: "+min);
-        		if (suffix.equals(min)) {
-        			this.leader();
-        			return true;
-        		}
-        		Integer max = min;
-        		String maxString = minString;
-        		for(String s : list){
-        			Integer tempValue = new Integer(s.substring(5));
-        			//System.out.println("Temp value: " + tempValue);
-        			if(tempValue > max && tempValue < suffix)  {
-        				max = tempValue;
-        				maxString = s;
-        			}
-        		}
-        		//Exists with watch
-        		Stat s = zk.exists(root+"/"+maxString, this);
-        		System.out.println("Watching "+root+"/"+maxString);
-        		//Step 5
-        		if (s != null) {
-        			//Wait for notification
-        			break;
-        		}
-        	}
-        	System.out.println(pathName+" is waiting for a notification!");
-        	return false;
-        	
-        }
-        
-        synchronized public void process(WatchedEvent event) {
-            synchronized (mutex) {
-            	if (event.getType() == Event.EventType.NodeDeleted) {
-            		try {
-            			boolean success = check();
-            			if (success) {
-            				compute();
-            			}
-            		} catch (Exception e) {e.printStackTrace();}
-            	}
-            }
-        }
-        
-        void leader() throws KeeperException, InterruptedException {
-			System.out.println("Become a leader: "+ professor +"!");
-            //Create leader znode
-            Stat s2 = zk.exists(leader, false);
-            if (s2 == null) {
-                zk.create(leader, id.getBytes(), Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
-            } else {
-            	zk.setData(leader, id.getBytes(), 0);
-            }
-        }
-        
-        void compute() {
-            System.out.println("I will correct all the essays (Elected)");
-
-            for (int i = 0; i < this.number_students; i++) {
-                for (int j = 0; j < this.number_questions; j++) {
-                    try{
-                        int r[] = this.q.consume();
-                        //System.out.println(Arrays.toString(r));
-                        if(this.answers[j] == r[0]){
-                            System.out.println("Student: " + r[1] + " | Question: " + (j+1) + " | Solution: Correct");
-                        }
-                        else{
-                            System.out.println("Student: " + r[1] + " | Question: " + (j+1) + " | Solution: Incorrect");
-                        }
-                    } catch (KeeperException e){
-                        i--;
-                    } catch (InterruptedException e){
-                        e.printStackTrace();
-                    }
-                }
-            }
-    		System.exit(0);
-        }
-    }
-
-    
-    public static void main(String args[]) {
-        int number_students = 2;
-        Queue q = new Queue(args[1], "/app3");
-        if (args[0].equals("student"))
-            student(args, number_students, q);
-        else if (args[0].equals("professor"))
-            professor(args, number_students, q);
-        else
-            System.err.println("Unknown option");
-    }
-
-    public static void professor(String args[], int number_students, Queue q) {
-        // Generate random integer
-        Random rand = new Random();
-        int idx = rand.nextInt(10);
-        Integer number_questions = new Integer(args[2]);
-        Integer id = new Integer(args[4]);
-        int answers[] = new int [number_questions];
-        String professors[] = new String[10];
-        professors[0] = "Professor 1";
-        professors[1] = "Professor 2";
-        professors[2] = "Professor 3";
-        professors[3] = "Professor 4";
-        professors[4] = "Professor 5";
-        professors[5] = "Professor 6";
-        professors[6] = "Professor 7";
-        professors[7] = "Professor 8";
-        professors[8] = "Professor 9";
-        professors[9] = "Professor 10";
-        for(int a = 0; a < number_questions; a++){ // answers
-            answers[a] = a + 1;
-        }
-
-    	Leader leader = new Leader(args[1],"/election","/leader", idx, professors[idx], answers, number_students, number_questions, q);
-        try{
-        	boolean success = leader.elect();
-        	if (success) {
-        		leader.compute();
-        	} else {
-        		while(true) {
-        			//Waiting for a notification
-        		}
-            }         
-        } catch (KeeperException e){
-        	e.printStackTrace();
-        } catch (InterruptedException e){
-        	e.printStackTrace();
-        }
-    }
-
-    public static void student(String args[], int number_students, Queue q) {
-        Integer number_questions = new Integer(args[2]);
-        Integer id = new Integer(args[4]);
-        int answers[] = new int [number_questions];
-
-        if (args[3].equals("s")) {
-            Random rand = new Random();
-            int max_solving = 60000; // maximum of 1 minute per question
-            int answer_range = 5;
-
-            for (int i = 0; i < number_questions; i++){
-                try{
-                    System.out.println("I'm thinking to answer question " + (i+1));
-                    Thread.sleep(rand.nextInt(max_solving));
-                    answers[i] = rand.nextInt(answer_range) + 1;
-                    System.out.println("Student: " + id + " | Question: " + (i+1) + " | Solution: " + answers[i]);
-                } catch (InterruptedException e){
-                    e.printStackTrace();
-                }
-            }
-
-            barrier("localhost", "/b1", number_students, id, 0);
-            lock("localhost", 1000, id, answers, q); // 1 second to send answer
-        }
-
-        /*barrier("localhost", "/b2", number_students + 1, id, 1);
-
-        if (args[3].equals("p")) {
-            System.out.println("Professor");
-            for(int a = 0; a < number_questions; a++){ // answers
-                answers[a] = a + 1;
-            }
-
-            for (int i = 0; i < number_students * number_questions; i++) {
-                try{
-                    int r[] = q.consume();
-                    System.out.println("Question: " + r[0] + " | Student: " + r[1]);
-                } catch (KeeperException e){
-                    i--;
-                } catch (InterruptedException e){
-                    e.printStackTrace();
-                }
-            }
-        }*/
-    }
-
-    public static void lock(String host, long wait, int id, int answers[], Queue q) {
-        Lock lock = new Lock(host,"/lock", wait, id, answers, q);
-        try{
-            boolean success = lock.lock();
-            if (success) {
-                lock.compute();
-            } else {
-                while(true) {
-                    //Waiting for a notification
-                }
-            }
-        } catch (KeeperException e){
-            e.printStackTrace();
-        } catch (InterruptedException e){
-            e.printStackTrace();
-        }
-    }
-
-    public static void barrier(String host, String root, int size, int id, int index) {
-        Barrier b = new Barrier(host, root, new Integer(size));
-        System.out.println("Waiting students to finish the essay (At barrier)");
-        try{
-            boolean flag = b.enter();
-            if(!flag) System.out.println("Error when entering the barrier");
-        } catch (KeeperException e){
-            e.printStackTrace();
-        } catch (InterruptedException e){
-            e.printStackTrace();
-        }
-
-        try{
-            b.leave();
-        } catch (KeeperException e){
-
-        } catch (InterruptedException e){
-
-        }
-        System.out.println("Going to return my essay (Going to lock)");
-    }   
-}
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.jute.Record;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.common.PathUtils;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.proto.CheckVersionRequest;
+import org.apache.zookeeper.proto.CreateRequest;
+import org.apache.zookeeper.proto.DeleteRequest;
+import org.apache.zookeeper.proto.SetDataRequest;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SyncPrimitive implements Watcher {
+
+    static final Logger LOG = LoggerFactory.getLogger(SyncPrimitive.class);
+
+    static Sessions sessions = new Sessions(Integer.getInteger("zk.sessions", 1));
+
+    // Recording of every ZooKeeper call, with -Dtrace=file
+    static Trace trace = Trace.open(System.getProperty("trace"));
+
+    // Pooled session of this primitive, shared with other participants.
+    // The handle is replaced when the session expires.
+    Session session;
+    volatile Backend zk;
+    Dispatcher dispatcher;
+
+    // Wait condition of this primitive, notified only by its own watches
+    final Object mutex = new Object();
+    String root;
+    // Ephemeral nodes this participant created and has not deleted. The
+    // session outlives the participant, so they are deleted on close(),
+    // and they are created again if the session expires.
+    Map<String, Ephemeral> ephemerals = new ConcurrentHashMap<String, Ephemeral>();
+    // Shared by every primitive of the same kind
+    final Metrics metrics = Metrics.of(kind(getClass()));
+
+    /**
+     * Orders sequential node names by their sequence suffix
+     */
+    static final Comparator<String> SEQUENCE_ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            return Long.compare(sequence(a), sequence(b));
+        }
+    };
+
+    SyncPrimitive(String address) {
+        session = sessions.get(address);
+        zk = session.zk;
+        dispatcher = session.dispatcher;
+        dispatcher.join(this);
+        if (zk != null && !session.ready()) {
+            System.out.println("Not connected after " + Session.CONNECT_TIMEOUT + " ms: " + zk);
+        }
+    }
+
+    public void process(WatchedEvent event) {
+        watched(event);
+        if (event.getState() == Event.KeeperState.Expired) {
+            // Woken up by recover() once a new session is connected
+            return;
+        }
+        synchronized (mutex) {
+            mutex.notifyAll();
+        }
+    }
+
+    /**
+     * Leave: delete the ephemeral nodes this participant still owns and
+     * stop receiving events from the session
+     */
+    void close() {
+        for (String path : ephemerals.keySet()) {
+            try {
+                delete(path, -1);
+            } catch (KeeperException.NoNodeException e) {
+                // Already gone
+            } catch (KeeperException e) {
+                LOG.warn("Ephemeral node " + path + " left to the session", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        dispatcher.leave(this);
+    }
+
+    /**
+     * Go on with the session that replaced an expired one: create again
+     * the ephemeral nodes the expiry deleted, then wake up waiters, which
+     * look at the nodes again and so leave their watches on the new
+     * session. Sequential nodes come back under a new name, handed to
+     * renamed().
+     *
+     * @param session
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void recover(Session session) throws KeeperException, InterruptedException{
+        zk = session.zk;
+        for (Map.Entry<String, Ephemeral> e : new HashMap<String, Ephemeral>(ephemerals).entrySet()) {
+            ephemerals.remove(e.getKey());
+            Ephemeral node = e.getValue();
+            try {
+                String created = create(node.request, node.data, node.mode);
+                if (!created.equals(e.getKey())) {
+                    renamed(e.getKey(), created);
+                }
+            } catch (KeeperException.NodeExistsException ex) {
+                // Taken by another participant meanwhile
+            }
+        }
+        process(new WatchedEvent(Event.EventType.None, Event.KeeperState.SyncConnected, null));
+    }
+
+    /**
+     * An ephemeral node of this primitive was created again under a new
+     * name after its session expired
+     *
+     * @param from
+     * @param to
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void renamed(String from, String to) throws KeeperException, InterruptedException{
+    }
+
+    /**
+     * How an ephemeral node was created, to create it again
+     */
+    static class Ephemeral {
+        String request;
+        byte data[];
+        CreateMode mode;
+
+        Ephemeral(String request, byte data[], CreateMode mode) {
+            this.request = request;
+            this.data = data;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * A ZooKeeper session and the dispatcher of its events
+     */
+    static class Session {
+        // How long participants wait for a new session to connect
+        static final long CONNECT_TIMEOUT = Long.getLong("zk.connect.timeout", 10000);
+
+        String address;
+        // Opening order in this process, which identifies it in the trace
+        int number;
+        volatile Backend zk;
+        Dispatcher dispatcher = new Dispatcher();
+        // Persistent nodes known to exist, so they are checked only once
+        Set<String> ensured = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        Session(String address) {
+            this.address = address;
+            dispatcher.session = this;
+            try {
+                System.out.println("Starting ZK:");
+                zk = backend(address, dispatcher);
+                System.out.println("Finished starting ZK: " + zk);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+                zk = null;
+            }
+        }
+
+        /**
+         * Wait for the session to be connected, at most zk.connect.timeout
+         * ms. Returns at once after the first connection.
+         *
+         * @return whether the session is connected
+         */
+        boolean ready() {
+            try {
+                return dispatcher.connected.await(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Open a new session in place of the expired one and hand it to
+         * every primitive of the old one, to restore their nodes and
+         * watches
+         */
+        void renew() {
+            System.out.println("Session expired, starting a new one");
+            dispatcher.connected = new CountDownLatch(1);
+            try {
+                zk = backend(address, dispatcher);
+            } catch (IOException e) {
+                System.out.println(e.toString());
+                return;
+            }
+            if (!ready()) {
+                System.out.println("Not connected after " + CONNECT_TIMEOUT + " ms: " + zk);
+            }
+            for (Watcher w : dispatcher.members) {
+                if (w instanceof SyncPrimitive) {
+                    try {
+                        ((SyncPrimitive) w).recover(this);
+                    } catch (KeeperException e) {
+                        System.out.println("Keeper exception when recovering session: " + e.toString());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sessions shared by the primitives of this process. Up to size
+     * sessions are opened per address, on demand, and handed out
+     * round-robin, so any number of participants in one process cost
+     * the server only size connections.
+     */
+    static class Sessions {
+        int size;
+        HashMap<String, Session[]> open = new HashMap<String, Session[]>();
+        HashMap<String, Integer> next = new HashMap<String, Integer>();
+        int opened = 0;
+
+        Sessions(int size) {
+            this.size = Math.max(1, size);
+        }
+
+        synchronized Session get(String address) {
+            Session pool[] = open.get(address);
+            if (pool == null) {
+                pool = new Session[size];
+                open.put(address, pool);
+                next.put(address, 0);
+            }
+            int i = next.get(address);
+            next.put(address, (i + 1) % size);
+            if (pool[i] == null || pool[i].zk == null) {
+                pool[i] = new Session(address);
+                pool[i].number = opened++;
+            }
+            return pool[i];
+        }
+
+        /**
+         * Ephemeral nodes the primitives of each open session hold, by
+         * session id
+         *
+         * @return
+         */
+        synchronized Map<Long, Set<String>> held() {
+            Map<Long, Set<String>> held = new HashMap<Long, Set<String>>();
+            for (Session pool[] : open.values()) {
+                for (Session session : pool) {
+                    if (session != null && session.zk != null) {
+                        Set<String> paths = new HashSet<String>();
+                        for (Watcher w : session.dispatcher.members) {
+                            if (w instanceof SyncPrimitive) {
+                                paths.addAll(((SyncPrimitive) w).ephemerals.keySet());
+                            }
+                        }
+                        held.put(session.zk.getSessionId(), paths);
+                    }
+                }
+            }
+            return held;
+        }
+
+        /**
+         * End every session, which deletes the ephemeral nodes still left
+         *
+         * @throws InterruptedException
+         */
+        synchronized void close() throws InterruptedException {
+            for (Session pool[] : open.values()) {
+                for (Session session : pool) {
+                    if (session != null && session.zk != null) {
+                        session.zk.close();
+                    }
+                }
+            }
+            open.clear();
+            next.clear();
+        }
+    }
+
+    /**
+     * Open the backend of a session: the in-memory one for the address
+     * "memory", or "memory:name" for a separate tree, and a ZooKeeper
+     * client for any other
+     *
+     * @param address
+     * @param watcher default watcher of the session
+     * @return
+     * @throws IOException
+     */
+    static Backend backend(String address, Watcher watcher) throws IOException {
+        if (address.equals("memory") || address.startsWith("memory:")) {
+            return new MemoryBackend(address, watcher);
+        }
+        return new ZooKeeperBackend(address, watcher);
+    }
+
+    /**
+     * The calls the primitives make of a ZooKeeper handle, with the same
+     * semantics, so they can run against something else
+     */
+    interface Backend {
+        String create(String path, byte data[], CreateMode mode) throws KeeperException, InterruptedException;
+
+        Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException;
+
+        Stat exists(String path, boolean watch) throws KeeperException, InterruptedException;
+
+        void exists(String path, boolean watch, AsyncCallback.StatCallback cb, Object ctx);
+
+        List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException;
+
+        byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException;
+
+        void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx);
+
+        Stat setData(String path, byte data[], int version) throws KeeperException, InterruptedException;
+
+        void delete(String path, int version) throws KeeperException, InterruptedException;
+
+        void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx);
+
+        List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException;
+
+        void multi(Iterable<Op> ops, AsyncCallback.MultiCallback cb, Object ctx);
+
+        ZooKeeper.States getState();
+
+        long getSessionId();
+
+        void close() throws InterruptedException;
+    }
+
+    /**
+     * Backend on a ZooKeeper ensemble
+     */
+    static class ZooKeeperBackend implements Backend {
+        final ZooKeeper zk;
+
+        ZooKeeperBackend(String address, Watcher watcher) throws IOException {
+            zk = new ZooKeeper(address, 3000, watcher);
+        }
+
+        public String create(String path, byte data[], CreateMode mode) throws KeeperException, InterruptedException {
+            return zk.create(path, data, Ids.OPEN_ACL_UNSAFE, mode);
+        }
+
+        public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+            return zk.exists(path, watcher);
+        }
+
+        public Stat exists(String path, boolean watch) throws KeeperException, InterruptedException {
+            return zk.exists(path, watch);
+        }
+
+        public void exists(String path, boolean watch, AsyncCallback.StatCallback cb, Object ctx) {
+            zk.exists(path, watch, cb, ctx);
+        }
+
+        public List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException {
+            return zk.getChildren(path, watch);
+        }
+
+        public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+            return zk.getData(path, watcher, stat);
+        }
+
+        public void getData(String path, boolean watch, AsyncCallback.DataCallback cb, Object ctx) {
+            zk.getData(path, watch, cb, ctx);
+        }
+
+        public Stat setData(String path, byte data[], int version) throws KeeperException, InterruptedException {
+            return zk.setData(path, data, version);
+        }
+
+        public void delete(String path, int version) throws KeeperException, InterruptedException {
+            zk.delete(path, version);
+        }
+
+        public void delete(String path, int version, AsyncCallback.VoidCallback cb, Object ctx) {
+            zk.delete(path, version, cb, ctx);
+        }
+
+        public List<OpResult> multi(Iterable<Op> ops) throws KeeperException, InterruptedException {
+            return zk.multi(ops);
+        }
+
+        public void multi(Iterable<Op> ops, AsyncCallback.MultiCallback cb, Object ctx) {
+            zk.multi(ops, cb, ctx);
+        }
+
+        public ZooKeeper.States getState() {
+            return zk.getState();
+        }
+
+        public long getSessionId() {
+            return zk.getSessionId();
+        }
+
+        public void close() throws InterruptedException {
+            zk.close();
+        }
+
+        public String toString() {
+            return zk.toString();
+        }
+    }
+
+    /**
+     * Backend in the memory of this process, for participants that all
+     * run in it. Each instance is a session of a tree shared by every
+     * session opened with the same address. Versions, sequential names,
+     * one-shot watches and multi transactions behave as on ZooKeeper, and
+     * the ephemeral nodes of a session are deleted when it is closed or
+     * expired. Watch events and async results are delivered in order on
+     * one thread per session, as the ZooKeeper client does.
+     */
+    static class MemoryBackend implements Backend {
+        static final ConcurrentHashMap<String, Tree> trees = new ConcurrentHashMap<String, Tree>();
+
+        final String address;
+        final Tree tree;
+        final long id;
+        final Watcher watcher;
+        final ExecutorService events;
+        volatile ZooKeeper.States state = ZooKeeper.States.CONNECTED;
+
+        MemoryBackend(String address, Watcher watcher) {
+            Tree t = trees.get(address);
+            if (t == null) {
+                trees.putIfAbsent(address, new Tree());
+                t = trees.get(address);
+            }
+            this.address = address;
+            this.tree = t;
+            this.id = tree.sessions.incrementAndGet();
+            this.watcher = watcher;
+            this.events = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "memory-event-" + id);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            deliver(watcher, new WatchedEvent(Event.EventType.None, Event.KeeperState.SyncConnected, null));
+        }
+
+        void live() throws KeeperException {
+            if (state != ZooKeeper.States.CONNECTED) {
+                throw KeeperException.create(KeeperException.Code.SESSIONEXPIRED);
+            }
+        }
+
+        void deliver(final Watcher w, final WatchedEvent event) {
+            try {
+                events.execute(new Runnable() {
+                    public void run() {
+                        w.process(event);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed
+            }
+        }
+
+        /**
+         * Run a call on the event thread, as ZooKeeper answers async
+         * calls in order with the watch events
+         *
+         * @param call
+         */
+        void async(Runnable call) {
+            try {
+                events.execute(call);
+            } catch (RejectedExecutionException e) {
+                // Closed
+            }
+        }
+
+        public String create(String path, byte data[], CreateMode mode) throws KeeperException {
+            live();
+            PathUtils.validatePath(path, mode.isSequential());
+            OpResult.CreateResult created = (OpResult.CreateResult) tree.write(this,
+                    Collections.singletonList(Op.create(path, data, Ids.OPEN_ACL_UNSAFE, mode))).get(0);
+            return created.getPath();
+        }
+
+        public Stat exists(String path, Watcher watcher) throws KeeperException {
+            live();
+            if (watcher != null) {
+                tree.watch(tree.dataWatches, path, this, watcher);
+            }
+            Node node = tree.read(path, false);
+            return node == null ? null : node.stat(new Stat());
+        }
+
+        public Stat exists(String path, boolean watch) throws KeeperException {
+            return exists(path, watch ? watcher : null);
+        }
+
+        public void exists(final String path, final boolean watch, final AsyncCallback.StatCallback cb,
+                final Object ctx) {
+            async(new Runnable() {
+                public void run() {
+                    try {
+                        Stat stat = exists(path, watch);
+                        cb.processResult(stat == null ? KeeperException.Code.NONODE.intValue() : 0, path, ctx, stat);
+                    } catch (KeeperException e) {
+                        cb.processResult(e.code().intValue(), path, ctx, null);
+                    }
+                }
+            });
+        }
+
+        public List<String> getChildren(String path, boolean watch) throws KeeperException {
+            live();
+            boolean watched = watch && tree.watch(tree.childWatches, path, this, watcher);
+            Node node = tree.read(path, true);
+            if (node == null) {
+                if (watched) {
+                    tree.unwatch(tree.childWatches, path, this, watcher);
+                }
+                throw KeeperException.create(KeeperException.Code.NONODE, path);
+            }
+            return new ArrayList<String>(node.children);
+        }
+
+        public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException {
+            live();
+            boolean watched = watcher != null && tree.watch(tree.dataWatches, path, this, watcher);
+            Node node = tree.read(path, false);
+            if (node == null) {
+                if (watched) {
+                    tree.unwatch(tree.dataWatches, path, this, watcher);
+                }
+                throw KeeperException.create(KeeperException.Code.NONODE, path);
+            }
+            if (stat != null) {
+                node.stat(stat);
+            }
+            return node.data == null ? null : node.data.clone();
+        }
+
+        public void getData(final String path, final boolean watch, final AsyncCallback.DataCallback cb,
+                final Object ctx) {
+            async(new Runnable() {
+                public void run() {
+                    try {
+                        Stat stat = new Stat();
+                        byte data[] = getData(path, watch ? watcher : null, stat);
+                        cb.processResult(0, path, ctx, data, stat);
+                    } catch (KeeperException e) {
+                        cb.processResult(e.code().intValue(), path, ctx, null, null);
+                    }
+                }
+            });
+        }
+
+        public Stat setData(String path, byte data[], int version) throws KeeperException {
+            live();
+            OpResult.SetDataResult set = (OpResult.SetDataResult) tree.write(this,
+                    Collections.singletonList(Op.setData(path, data, version))).get(0);
+            return set.getStat();
+        }
+
+        public void delete(String path, int version) throws KeeperException {
+            live();
+            tree.write(this, Collections.singletonList(Op.delete(path, version)));
+        }
+
+        public void delete(final String path, final int version, final AsyncCallback.VoidCallback cb,
+                final Object ctx) {
+            async(new Runnable() {
+                public void run() {
+                    try {
+                        delete(path, version);
+                        cb.processResult(0, path, ctx);
+                    } catch (KeeperException e) {
+                        cb.processResult(e.code().intValue(), path, ctx);
+                    }
+                }
+            });
+        }
+
+        public List<OpResult> multi(Iterable<Op> ops) throws KeeperException {
+            live();
+            return tree.write(this, ops);
+        }
+
+        public void multi(final Iterable<Op> ops, final AsyncCallback.MultiCallback cb, final Object ctx) {
+            async(new Runnable() {
+                public void run() {
+                    try {
+                        cb.processResult(0, null, ctx, multi(ops));
+                    } catch (KeeperException e) {
+                        cb.processResult(e.code().intValue(), null, ctx, e.getResults());
+                    }
+                }
+            });
+        }
+
+        public ZooKeeper.States getState() {
+            return state;
+        }
+
+        public long getSessionId() {
+            return id;
+        }
+
+        /**
+         * End the session, deleting its ephemeral nodes
+         */
+        public void close() {
+            end();
+            events.shutdown();
+        }
+
+        /**
+         * Expire the session as the server would: its ephemeral nodes are
+         * deleted and the default watcher is told, which makes the
+         * primitives open a new session and recover
+         */
+        void expire() {
+            end();
+            deliver(watcher, new WatchedEvent(Event.EventType.None, Event.KeeperState.Expired, null));
+            events.shutdown();
+        }
+
+        void end() {
+            if (state == ZooKeeper.States.CONNECTED) {
+                state = ZooKeeper.States.CLOSED;
+                tree.end(this);
+            }
+        }
+
+        public String toString() {
+            return "MemoryBackend " + address + " session " + id + " " + state;
+        }
+
+        /**
+         * A node as of one write. Nodes are replaced, never changed, apart
+         * from the names of their children.
+         */
+        static class Node {
+            byte data[];
+            int version;
+            int cversion;
+            int numChildren;
+            long czxid;
+            long mzxid;
+            long pzxid;
+            long ctime;
+            long mtime;
+            long ephemeralOwner;
+            Collection<String> children = new ConcurrentSkipListSet<String>();
+
+            Node copy() {
+                Node n = new Node();
+                n.data = data;
+                n.version = version;
+                n.cversion = cversion;
+                n.numChildren = numChildren;
+                n.czxid = czxid;
+                n.mzxid = mzxid;
+                n.pzxid = pzxid;
+                n.ctime = ctime;
+                n.mtime = mtime;
+                n.ephemeralOwner = ephemeralOwner;
+                n.children = children;
+                return n;
+            }
+
+            Stat stat(Stat stat) {
+                stat.setCzxid(czxid);
+                stat.setMzxid(mzxid);
+                stat.setPzxid(pzxid);
+                stat.setCtime(ctime);
+                stat.setMtime(mtime);
+                stat.setVersion(version);
+                // cversion counts creates, which number sequential children;
+                // the server reports it as creates plus deletes
+                stat.setCversion(cversion * 2 - numChildren);
+                stat.setAversion(0);
+                stat.setEphemeralOwner(ephemeralOwner);
+                stat.setDataLength(data == null ? 0 : data.length);
+                stat.setNumChildren(numChildren);
+                return stat;
+            }
+        }
+
+        /**
+         * Registration of a one-shot watch
+         */
+        static class Watch {
+            final MemoryBackend session;
+            final Watcher watcher;
+
+            Watch(MemoryBackend session, Watcher watcher) {
+                this.session = session;
+                this.watcher = watcher;
+            }
+
+            public boolean equals(Object o) {
+                return o instanceof Watch && ((Watch) o).session == session && ((Watch) o).watcher == watcher;
+            }
+
+            public int hashCode() {
+                return System.identityHashCode(session) * 31 + System.identityHashCode(watcher);
+            }
+        }
+
+        /**
+         * How to take back one change of a failed transaction: a node
+         * replaced, or a child name added or removed
+         */
+        static class Undo {
+            String path;
+            Node before;
+            Collection<String> children;
+            String child;
+            boolean added;
+        }
+
+        /**
+         * The nodes and watches shared by the sessions of one address.
+         * Reads take no lock: they are validated against the write stamp
+         * and only read again under the read lock when a write overlapped,
+         * so they never see half of a transaction. Writes are applied one
+         * at a time, which gives the single order of changes, sequence
+         * numbers and watch events that ZooKeeper's leader gives.
+         */
+        static class Tree {
+            final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+            // exists and getData watches, and getChildren watches, by path
+            final ConcurrentHashMap<String, Set<Watch>> dataWatches = new ConcurrentHashMap<String, Set<Watch>>();
+            final ConcurrentHashMap<String, Set<Watch>> childWatches = new ConcurrentHashMap<String, Set<Watch>>();
+            final StampedLock lock = new StampedLock();
+            final AtomicLong sessions = new AtomicLong();
+            long zxid = 0;
+
+            Tree() {
+                nodes.put("/", new Node());
+            }
+
+            /**
+             * Consistent copy of a node, with the names of its children
+             * when asked, or null if there is no node at path
+             *
+             * @param path
+             * @param children
+             * @return
+             */
+            Node read(String path, boolean children) {
+                long stamp = lock.tryOptimisticRead();
+                Node node = copy(path, children);
+                if (!lock.validate(stamp)) {
+                    stamp = lock.readLock();
+                    try {
+                        node = copy(path, children);
+                    } finally {
+                        lock.unlockRead(stamp);
+                    }
+                }
+                return node;
+            }
+
+            Node copy(String path, boolean children) {
+                Node node = nodes.get(path);
+                if (node == null) {
+                    return null;
+                }
+                node = node.copy();
+                node.children = children ? new ArrayList<String>(node.children) : Collections.<String>emptyList();
+                return node;
+            }
+
+            /**
+             * Leave a one-shot watch on path. Watches are left before the
+             * read they belong to, so no write between the two is missed.
+             *
+             * @return whether it was not there yet
+             */
+            boolean watch(ConcurrentHashMap<String, Set<Watch>> watches, String path, MemoryBackend session,
+                    Watcher watcher) {
+                while (true) {
+                    Set<Watch> w = watches.get(path);
+                    if (w == null) {
+                        watches.putIfAbsent(path, Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>()));
+                        continue;
+                    }
+                    boolean added = w.add(new Watch(session, watcher));
+                    // Unless a write took the set meanwhile, which may not have seen it
+                    if (watches.get(path) == w) {
+                        return added;
+                    }
+                }
+            }
+
+            void unwatch(ConcurrentHashMap<String, Set<Watch>> watches, String path, MemoryBackend session,
+                    Watcher watcher) {
+                Set<Watch> w = watches.get(path);
+                if (w != null) {
+                    w.remove(new Watch(session, watcher));
+                }
+            }
+
+            /**
+             * Apply the operations as one transaction: all of them, or
+             * none and the exception of the first that failed. Watches are
+             * triggered only once all succeeded, in the order of the
+             * changes.
+             *
+             * @param session
+             * @param ops
+             * @return
+             * @throws KeeperException
+             */
+            List<OpResult> write(MemoryBackend session, Iterable<Op> ops) throws KeeperException {
+                List<OpResult> results = new ArrayList<OpResult>();
+                List<Undo> undo = new ArrayList<Undo>();
+                List<WatchedEvent> fired = new ArrayList<WatchedEvent>();
+                long stamp = lock.writeLock();
+                try {
+                    for (Op op : ops) {
+                        results.add(apply(op.toRequestRecord(), session.id, undo, fired));
+                    }
+                    for (WatchedEvent event : fired) {
+                        trigger(event);
+                    }
+                    return results;
+                } catch (KeeperException e) {
+                    for (int i = undo.size() - 1; i >= 0; i--) {
+                        Undo u = undo.get(i);
+                        if (u.children != null) {
+                            if (u.added) {
+                                u.children.remove(u.child);
+                            } else {
+                                u.children.add(u.child);
+                            }
+                        } else if (u.before == null) {
+                            nodes.remove(u.path);
+                        } else {
+                            nodes.put(u.path, u.before);
+                        }
+                    }
+                    throw e;
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+
+            OpResult apply(Record request, long owner, List<Undo> undo, List<WatchedEvent> fired)
+                    throws KeeperException {
+                if (request instanceof CreateRequest) {
+                    CreateRequest r = (CreateRequest) request;
+                    CreateMode mode = CreateMode.fromFlag(r.getFlags());
+                    String path = r.getPath();
+                    String parentPath = parent(path);
+                    Node parent = nodes.get(parentPath);
+                    if (parent == null) {
+                        throw KeeperException.create(KeeperException.Code.NONODE, path);
+                    }
+                    if (parent.ephemeralOwner != 0) {
+                        throw KeeperException.create(KeeperException.Code.NOCHILDRENFOREPHEMERALS, path);
+                    }
+                    if (mode.isSequential()) {
+                        path = path + String.format("%010d", parent.cversion);
+                    }
+                    if (nodes.containsKey(path)) {
+                        throw KeeperException.create(KeeperException.Code.NODEEXISTS, path);
+                    }
+                    long now = System.currentTimeMillis();
+                    Node node = new Node();
+                    node.data = r.getData() == null ? null : r.getData().clone();
+                    node.czxid = node.mzxid = node.pzxid = ++zxid;
+                    node.ctime = node.mtime = now;
+                    node.ephemeralOwner = mode.isEphemeral() ? owner : 0;
+                    Node p = parent.copy();
+                    p.cversion++;
+                    p.numChildren++;
+                    p.pzxid = zxid;
+                    replace(parentPath, parent, p, undo);
+                    replace(path, null, node, undo);
+                    children(p, path.substring(path.lastIndexOf('/') + 1), true, undo);
+                    fired.add(new WatchedEvent(Event.EventType.NodeCreated, Event.KeeperState.SyncConnected, path));
+                    fired.add(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                            parentPath));
+                    return new OpResult.CreateResult(path);
+                } else if (request instanceof DeleteRequest) {
+                    DeleteRequest r = (DeleteRequest) request;
+                    String path = r.getPath();
+                    Node node = check(path, r.getVersion());
+                    if (node.numChildren > 0) {
+                        throw KeeperException.create(KeeperException.Code.NOTEMPTY, path);
+                    }
+                    String parentPath = parent(path);
+                    Node parent = nodes.get(parentPath);
+                    Node p = parent.copy();
+                    p.numChildren--;
+                    p.pzxid = ++zxid;
+                    replace(path, node, null, undo);
+                    replace(parentPath, parent, p, undo);
+                    children(p, path.substring(path.lastIndexOf('/') + 1), false, undo);
+                    fired.add(new WatchedEvent(Event.EventType.NodeDeleted, Event.KeeperState.SyncConnected, path));
+                    fired.add(new WatchedEvent(Event.EventType.NodeChildrenChanged, Event.KeeperState.SyncConnected,
+                            parentPath));
+                    return new OpResult.DeleteResult();
+                } else if (request instanceof SetDataRequest) {
+                    SetDataRequest r = (SetDataRequest) request;
+                    Node node = check(r.getPath(), r.getVersion());
+                    Node n = node.copy();
+                    n.data = r.getData() == null ? null : r.getData().clone();
+                    n.version++;
+                    n.mzxid = ++zxid;
+                    n.mtime = System.currentTimeMillis();
+                    replace(r.getPath(), node, n, undo);
+                    fired.add(new WatchedEvent(Event.EventType.NodeDataChanged, Event.KeeperState.SyncConnected,
+                            r.getPath()));
+                    return new OpResult.SetDataResult(n.stat(new Stat()));
+                } else if (request instanceof CheckVersionRequest) {
+                    CheckVersionRequest r = (CheckVersionRequest) request;
+                    check(r.getPath(), r.getVersion());
+                    return new OpResult.CheckResult();
+                }
+                throw KeeperException.create(KeeperException.Code.UNIMPLEMENTED);
+            }
+
+            static String parent(String path) throws KeeperException {
+                int i = path.lastIndexOf('/');
+                if (i < 0 || path.equals("/")) {
+                    throw KeeperException.create(KeeperException.Code.BADARGUMENTS, path);
+                }
+                return i == 0 ? "/" : path.substring(0, i);
+            }
+
+            Node check(String path, int version) throws KeeperException {
+                Node node = nodes.get(path);
+                if (node == null) {
+                    throw KeeperException.create(KeeperException.Code.NONODE, path);
+                }
+                if (version != -1 && version != node.version) {
+                    throw KeeperException.create(KeeperException.Code.BADVERSION, path);
+                }
+                return node;
+            }
+
+            void replace(String path, Node before, Node after, List<Undo> undo) {
+                if (after == null) {
+                    nodes.remove(path);
+                } else {
+                    nodes.put(path, after);
+                }
+                Undo u = new Undo();
+                u.path = path;
+                u.before = before;
+                undo.add(u);
+            }
+
+            void children(Node parent, String child, boolean added, List<Undo> undo) {
+                if (added) {
+                    parent.children.add(child);
+                } else {
+                    parent.children.remove(child);
+                }
+                Undo u = new Undo();
+                u.children = parent.children;
+                u.child = child;
+                u.added = added;
+                undo.add(u);
+            }
+
+            /**
+             * Hand a change to the watches it triggers, and forget them
+             *
+             * @param event
+             */
+            void trigger(WatchedEvent event) {
+                String path = event.getPath();
+                switch (event.getType()) {
+                case NodeChildrenChanged:
+                    fire(childWatches.remove(path), event);
+                    break;
+                case NodeDeleted:
+                    fire(dataWatches.remove(path), event);
+                    fire(childWatches.remove(path), event);
+                    break;
+                default:
+                    fire(dataWatches.remove(path), event);
+                }
+            }
+
+            static void fire(Set<Watch> watches, WatchedEvent event) {
+                if (watches != null) {
+                    for (Watch w : watches) {
+                        if (w.session.state == ZooKeeper.States.CONNECTED) {
+                            w.session.deliver(w.watcher, event);
+                        }
+                    }
+                }
+            }
+
+            /**
+             * Delete the ephemeral nodes of a session that ended, as one
+             * write
+             *
+             * @param session
+             */
+            void end(MemoryBackend session) {
+                List<Op> ops = new ArrayList<Op>();
+                for (Map.Entry<String, Node> e : nodes.entrySet()) {
+                    if (e.getValue().ephemeralOwner == session.id) {
+                        ops.add(Op.delete(e.getKey(), -1));
+                    }
+                }
+                // One at a time, so one deleted meanwhile does not keep the others
+                for (Op op : ops) {
+                    try {
+                        write(session, Collections.singletonList(op));
+                    } catch (KeeperException e) {
+                        // Deleted meanwhile
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Name the metrics of a primitive class are kept under, the first
+     * named class up from anonymous subclasses
+     *
+     * @param c
+     * @return
+     */
+    static String kind(Class<?> c) {
+        while (c.getSimpleName().isEmpty()) {
+            c = c.getSuperclass();
+        }
+        return c.getSimpleName();
+    }
+
+    /**
+     * Create the persistent nodes, and their parents, that do not exist
+     * yet. The checks are sent all at once and the creations go in a
+     * single transaction, so this takes two round trips however many
+     * paths there are, and none for paths the session already knows.
+     * Other participants may be creating them at the same time.
+     *
+     * @param paths
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    void ensure(String... paths) throws KeeperException, InterruptedException{
+        List<String> wanted = new ArrayList<String>();
+        for (String path : paths) {
+            for (int i = path.indexOf('/', 1); ; i = path.indexOf('/', i + 1)) {
+                String p = i < 0 ? path : path.substring(0, i);
+                if (!session.ensured.contains(p) && !wanted.contains(p)) {
+                    wanted.add(p);
+                }
+                if (i < 0) {
+                    break;
+                }
+            }
+        }
+        while (!wanted.isEmpty()) {
+            final int codes[] = new int[wanted.size()];
+            final CountDownLatch checked = new CountDownLatch(wanted.size());
+            for (int i = 0; i < codes.length; i++) {
+                exists(wanted.get(i), new AsyncCallback.StatCallback() {
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        codes[(Integer) ctx] = rc;
+                        checked.countDown();
+                    }
+                }, i);
+            }
+            checked.await();
+            List<Op> ops = new ArrayList<Op>();
+            for (int i = 0; i < codes.length; i++) {
+                if (codes[i] == KeeperException.Code.NONODE.intValue()) {
+                    ops.add(Op.create(wanted.get(i), new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                } else if (codes[i] != KeeperException.Code.OK.intValue()) {
+                    throw KeeperException.create(KeeperException.Code.get(codes[i]), wanted.get(i));
+                }
+            }
+            try {
+                if (!ops.isEmpty()) {
+                    multi(ops);
+                }
+                session.ensured.addAll(wanted);
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                // Created concurrently, check again
+            }
+        }
+    }
+
+    /**
+     * Create the roots of the primitives before any participant starts
+     *
+     * @param address
+     * @param roots
+     */
+    static void bootstrap(String address, String... roots) {
+        SyncPrimitive s = new SyncPrimitive(address);
+        try {
+            if (s.zk != null) {
+                s.ensure(roots);
+            }
+        } catch (KeeperException e) {
+            System.out.println("Keeper exception when creating roots: " + e.toString());
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted exception");
+        } finally {
+            s.close();
+        }
+    }
+
+    /*
+     * ZooKeeper calls of the primitives. Each one is timed into the
+     * metrics of the primitive, failures counted by error code, and
+     * written to the trace when recording.
+     */
+
+    String create(String path, byte data[], CreateMode mode) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            String created = zk.create(path, data, mode);
+            if (mode.isEphemeral()) {
+                ephemerals.put(created, new Ephemeral(path, data, mode));
+            }
+            return created;
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("create." + e.code());
+            throw e;
+        } finally {
+            metrics.record("create", start);
+            traced(Trace.CREATE, path, data.length, mode.toFlag(), rc, start);
+        }
+    }
+
+    Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            Stat stat = zk.exists(path, watcher);
+            if (stat == null) {
+                rc = KeeperException.Code.NONODE.intValue();
+            }
+            return stat;
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("exists." + e.code());
+            throw e;
+        } finally {
+            metrics.record("exists", start);
+            traced(Trace.EXISTS, path, watcher == null ? 0 : 1, 0, rc, start);
+        }
+    }
+
+    void exists(String path, final AsyncCallback.StatCallback cb, Object ctx) {
+        final long start = System.nanoTime();
+        zk.exists(path, false, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                metrics.record("exists", start);
+                if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+                    metrics.count("exists." + KeeperException.Code.get(rc));
+                }
+                traced(Trace.EXISTS, path, 0, 0, rc, start);
+                cb.processResult(rc, path, ctx, stat);
+            }
+        }, ctx);
+    }
+
+    Stat exists(String path, boolean watch) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            Stat stat = zk.exists(path, watch);
+            if (stat == null) {
+                rc = KeeperException.Code.NONODE.intValue();
+            }
+            return stat;
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("exists." + e.code());
+            throw e;
+        } finally {
+            metrics.record("exists", start);
+            traced(Trace.EXISTS, path, watch ? 1 : 0, 0, rc, start);
+        }
+    }
+
+    List<String> getChildren(String path, boolean watch) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            return zk.getChildren(path, watch);
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("getChildren." + e.code());
+            throw e;
+        } finally {
+            metrics.record("getChildren", start);
+            traced(Trace.GET_CHILDREN, path, watch ? 1 : 0, 0, rc, start);
+        }
+    }
+
+    byte[] getData(String path, Stat stat) throws KeeperException, InterruptedException{
+        return getData(path, (Watcher) null, stat);
+    }
+
+    byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            return zk.getData(path, watcher, stat);
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("getData." + e.code());
+            throw e;
+        } finally {
+            metrics.record("getData", start);
+            traced(Trace.GET_DATA, path, watcher == null ? 0 : 1, 0, rc, start);
+        }
+    }
+
+    Stat setData(String path, byte data[], int version) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            return zk.setData(path, data, version);
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("setData." + e.code());
+            throw e;
+        } finally {
+            metrics.record("setData", start);
+            traced(Trace.SET_DATA, path, data.length, version, rc, start);
+        }
+    }
+
+    void delete(String path, int version) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            zk.delete(path, version);
+            ephemerals.remove(path);
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("delete." + e.code());
+            if (e.code() == KeeperException.Code.NONODE) {
+                ephemerals.remove(path);
+            }
+            throw e;
+        } finally {
+            metrics.record("delete", start);
+            traced(Trace.DELETE, path, 0, version, rc, start);
+        }
+    }
+
+    List<OpResult> multi(List<Op> ops) throws KeeperException, InterruptedException{
+        long start = System.nanoTime();
+        int rc = 0;
+        try {
+            return zk.multi(ops);
+        } catch (KeeperException e) {
+            rc = e.code().intValue();
+            metrics.count("multi." + e.code());
+            throw e;
+        } finally {
+            metrics.record("multi", start);
+            if (trace != null) {
+                trace.multi(session.number, ops, rc, start);
+            }
+        }
+    }
+
+    void multi(final List<Op> ops, final AsyncCallback.MultiCallback cb, Object ctx) {
+        final long start = System.nanoTime();
+        zk.multi(ops, new AsyncCallback.MultiCallback() {
+            public void processResult(int rc, String path, Object ctx, List<OpResult> results) {
+                metrics.record("multi", start);
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    metrics.count("multi." + KeeperException.Code.get(rc));
+                }
+                if (trace != null) {
+                    trace.multi(session.number, ops, rc, start);
+                }
+                cb.processResult(rc, path, ctx, results);
+            }
+        }, ctx);
+    }
+
+    void getData(String path, final AsyncCallback.DataCallback cb, Object ctx) {
+        final long start = System.nanoTime();
+        zk.getData(path, false, new AsyncCallback.DataCallback() {
+            public void processResult(int rc, String path, Object ctx, byte data[], Stat stat) {
+                metrics.record("getData", start);
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    metrics.count("getData." + KeeperException.Code.get(rc));
+                }
+                traced(Trace.GET_DATA, path, 0, 0, rc, start);
+                cb.processResult(rc, path, ctx, data, stat);
+            }
+        }, ctx);
+    }
+
+    void delete(String path, final int version, final AsyncCallback.VoidCallback cb, Object ctx) {
+        final long start = System.nanoTime();
+        zk.delete(path, version, new AsyncCallback.VoidCallback() {
+            public void processResult(int rc, String path, Object ctx) {
+                metrics.record("delete", start);
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    metrics.count("delete." + KeeperException.Code.get(rc));
+                }
+                traced(Trace.DELETE, path, 0, version, rc, start);
+                cb.processResult(rc, path, ctx);
+            }
+        }, ctx);
+    }
+
+    void traced(byte op, String path, int a, int b, int rc, long start) {
+        if (trace != null) {
+            trace.call(session.number, op, path, a, b, rc, start);
+        }
+    }
+
+    /**
+     * Count a watch event into the metrics and the trace
+     *
+     * @param event
+     */
+    void watched(WatchedEvent event) {
+        metrics.count("watch." + event.getType());
+        if (trace != null && event.getType() != Event.EventType.None) {
+            trace.call(session.number, Trace.WATCH, event.getPath(), event.getType().getIntValue(), 0, 0, 0);
+        }
+    }
+
+    /**
+     * Default watcher of the session. Routes each event to the watchers
+     * registered for its path and type, and session state changes to every
+     * primitive, so primitives sharing the session never wake each other.
+     */
+    static class Dispatcher implements Watcher {
+        Session session;
+        // Counted down once the current handle connects
+        volatile CountDownLatch connected = new CountDownLatch(1);
+        Set<Watcher> members = Collections.newSetFromMap(new ConcurrentHashMap<Watcher, Boolean>());
+        ConcurrentHashMap<String, CopyOnWriteArrayList<Route>> routes =
+                new ConcurrentHashMap<String, CopyOnWriteArrayList<Route>>();
+
+        void join(Watcher w) {
+            members.add(w);
+        }
+
+        void leave(Watcher w) {
+            members.remove(w);
+            for (CopyOnWriteArrayList<Route> r : routes.values()) {
+                for (Route route : r) {
+                    if (route.watcher == w) {
+                        r.remove(route);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Deliver events of the given types on path to w
+         *
+         * @param path
+         * @param w
+         * @param types
+         */
+        void register(String path, Watcher w, Event.EventType... types) {
+            CopyOnWriteArrayList<Route> r = routes.get(path);
+            if (r == null) {
+                routes.putIfAbsent(path, new CopyOnWriteArrayList<Route>());
+                r = routes.get(path);
+            }
+            r.add(new Route(w, EnumSet.copyOf(Arrays.asList(types))));
+        }
+
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                if (event.getState() == Event.KeeperState.SyncConnected) {
+                    connected.countDown();
+                } else if (event.getState() == Event.KeeperState.Expired && session != null) {
+                    // Primitives are woken up once they recovered
+                    session.renew();
+                    return;
+                }
+                for (Watcher w : members) {
+                    w.process(event);
+                }
+                return;
+            }
+            CopyOnWriteArrayList<Route> r = routes.get(event.getPath());
+            if (r != null) {
+                for (Route route : r) {
+                    if (route.types.contains(event.getType())) {
+                        route.watcher.process(event);
+                    }
+                }
+            }
+        }
+
+        static class Route {
+            Watcher watcher;
+            EnumSet<Event.EventType> types;
+
+            Route(Watcher watcher, EnumSet<Event.EventType> types) {
+                this.watcher = watcher;
+                this.types = types;
+            }
+        }
+    }
+
+    /**
+     * Park until the future completes or the timeout elapses
+     *
+     * @param f
+     * @param timeout
+     * @param unit
+     * @return the value of f, or false on timeout
+     * @throws KeeperException
+     * @throws InterruptedException
+     */
+    static boolean await(CompletableFuture<Boolean> f, long timeout, TimeUnit unit)
+            throws KeeperException, InterruptedException{
+        try {
+            return f.get(timeout, unit);
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof KeeperException) {
+                throw (KeeperException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Sequence number appended by ZooKeeper to a sequential node name
+     *
+     * @param name
+     * @return
+     */
+    static long sequence(String name) {
+        // ZooKeeper always appends exactly ten digits
+        long seq = 0;
+        for (int i = Math.max(0, name.length() - 10); i < name.length(); i++) {
+            seq = seq * 10 + (name.charAt(i) - '0');
+        }
+        return seq;
+    }
+
+    /**
+     * Sorted sequence numbers of the children of a node that share a name
+     * prefix. Loaded once from getChildren and then kept up to date as
+     * nodes are seen to come and go, instead of listing the node again.
+     */
+    static class SequentialIndex {
+        String prefix;
+        long seqs[] = new long[16];
+        int size = 0;
+
+        SequentialIndex(String prefix) {
+            this.prefix = prefix;
+        }
+
+        void load(List<String> children) {
+            size = 0;
+            for (String child : children) {
+                if (child.startsWith(prefix)) {
+                    if (size == seqs.length) {
+                        seqs = Arrays.copyOf(seqs, size * 2);
+                    }
+                    seqs[size++] = sequence(child);
+                }
+            }
+            Arrays.sort(seqs, 0, size);
+        }
+
+        void add(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (size == seqs.length) {
+                seqs = Arrays.copyOf(seqs, size * 2);
+            }
+            System.arraycopy(seqs, i, seqs, i + 1, size - i);
+            seqs[i] = seq;
+            size++;
+        }
+
+        void remove(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            if (i >= 0) {
+                System.arraycopy(seqs, i + 1, seqs, i, size - i - 1);
+                size--;
+            }
+        }
+
+        long min() {
+            return size > 0 ? seqs[0] : -1;
+        }
+
+        boolean isMin(long seq) {
+            return size > 0 && seqs[0] == seq;
+        }
+
+        /**
+         * Largest sequence number below seq, or -1 if there is none
+         *
+         * @param seq
+         * @return
+         */
+        long predecessor(long seq) {
+            int i = Arrays.binarySearch(seqs, 0, size, seq);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return i > 0 ? seqs[i - 1] : -1;
+        }
+
+        /**
+         * Child name of a sequence number, as ZooKeeper formats it
+         *
+         * @param seq
+         * @return
+         */
+        String name(long seq) {
+            String digits = Long.toString(seq);
+            StringBuilder b = new StringBuilder(prefix.length() + 10).append(prefix);
+            for (int i = digits.length(); i < 10; i++) {
+                b.append('0');
+            }
+            return b.append(digits).toString();
+        }
+    }
+
+    /**
+     * Latency histograms, counters and gauges of one kind of primitive,
+     * exposed as the MBean SyncPrimitive:type=Metrics,name=kind. With
+     * -Dmetrics.snapshot=file every kind is also written to that file
+     * every -Dmetrics.period milliseconds (10 s by default).
+     */
+    static class Metrics implements DynamicMBean {
+        static final ConcurrentHashMap<String, Metrics> all = new ConcurrentHashMap<String, Metrics>();
+        static final String SNAPSHOT = System.getProperty("metrics.snapshot");
+        static final long PERIOD = Long.getLong("metrics.period", 10000);
+        static Thread snapshots;
+
+        String name;
+        ConcurrentHashMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+        ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+        ConcurrentHashMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+
+        Metrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Metrics of a kind of primitive, registered with JMX on first use
+         *
+         * @param name
+         * @return
+         */
+        static Metrics of(String name) {
+            Metrics m = all.get(name);
+            if (m != null) {
+                return m;
+            }
+            m = new Metrics(name);
+            Metrics previous = all.putIfAbsent(name, m);
+            if (previous != null) {
+                return previous;
+            }
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(m,
+                        new ObjectName("SyncPrimitive:type=Metrics,name=" + name));
+            } catch (JMException e) {
+                LOG.warn("Metrics of " + name + " not registered with JMX", e);
+            }
+            if (SNAPSHOT != null) {
+                startSnapshots(new File(SNAPSHOT), PERIOD);
+            }
+            return m;
+        }
+
+        /**
+         * Record the time elapsed since start, from System.nanoTime()
+         *
+         * @param op
+         * @param start
+         */
+        void record(String op, long start) {
+            Histogram h = latencies.get(op);
+            if (h == null) {
+                latencies.putIfAbsent(op, new Histogram());
+                h = latencies.get(op);
+            }
+            h.record(System.nanoTime() - start);
+        }
+
+        void count(String counter) {
+            count(counter, 1);
+        }
+
+        void count(String counter, long n) {
+            LongAdder c = counters.get(counter);
+            if (c == null) {
+                counters.putIfAbsent(counter, new LongAdder());
+                c = counters.get(counter);
+            }
+            c.add(n);
+        }
+
+        void gauge(String gauge, long value) {
+            AtomicLong g = gauges.get(gauge);
+            if (g == null) {
+                gauges.putIfAbsent(gauge, new AtomicLong());
+                g = gauges.get(gauge);
+            }
+            g.set(value);
+        }
+
+        /**
+         * Current values, latencies in microseconds
+         *
+         * @return
+         */
+        TreeMap<String, Long> values() {
+            TreeMap<String, Long> values = new TreeMap<String, Long>();
+            for (Map.Entry<String, Histogram> e : latencies.entrySet()) {
+                Histogram h = e.getValue();
+                long count = h.count.sum();
+                values.put(e.getKey() + ".count", count);
+                values.put(e.getKey() + ".meanMicros", count == 0 ? 0 : h.total.sum() / count / 1000);
+                values.put(e.getKey() + ".p50Micros", h.percentile(0.5) / 1000);
+                values.put(e.getKey() + ".p99Micros", h.percentile(0.99) / 1000);
+                values.put(e.getKey() + ".maxMicros", h.max.get() / 1000);
+            }
+            for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                values.put(e.getKey(), e.getValue().sum());
+            }
+            for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) {
+                values.put(e.getKey(), e.getValue().get());
+            }
+            return values;
+        }
+
+        /**
+         * Rewrite file with the values of every kind every period
+         * milliseconds, from a daemon thread
+         *
+         * @param file
+         * @param period
+         */
+        static synchronized void startSnapshots(final File file, final long period) {
+            if (snapshots != null) {
+                return;
+            }
+            snapshots = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            Thread.sleep(period);
+                            try {
+                                snapshot(file);
+                            } catch (IOException e) {
+                                LOG.warn("Metrics snapshot not written to " + file, e);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    }
+                }
+            }, "metrics-snapshot");
+            snapshots.setDaemon(true);
+            snapshots.start();
+        }
+
+        /**
+         * Write one line per value of every kind, replacing file at once
+         *
+         * @param file
+         * @throws IOException
+         */
+        static void snapshot(File file) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+            try {
+                out.println("# " + new java.util.Date());
+                for (Metrics m : new TreeMap<String, Metrics>(all).values()) {
+                    for (Map.Entry<String, Long> e : m.values().entrySet()) {
+                        out.println(m.name + "." + e.getKey() + " " + e.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String attributes[]) {
+            TreeMap<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String action, Object params[], String signature[])
+                throws MBeanException, ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action), action + " is not an operation");
+        }
+
+        /**
+         * One read-only attribute per value recorded so far
+         */
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String key : values().keySet()) {
+                attributes.add(new MBeanAttributeInfo(key, "java.lang.Long", key, true, false, false));
+            }
+            return new MBeanInfo(getClass().getName(), "Metrics of " + name,
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+
+    /**
+     * Lock-free latency histogram with power of two buckets: bucket i
+     * counts samples below 2^i nanoseconds, so percentiles are upper
+     * bounds within a factor of two.
+     */
+    static class Histogram {
+        AtomicLongArray buckets = new AtomicLongArray(64);
+        LongAdder count = new LongAdder();
+        LongAdder total = new LongAdder();
+        AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.increment();
+            total.add(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+                // Raced with a larger sample
+            }
+        }
+
+        long percentile(double p) {
+            long n = count.sum();
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen > 0 && seen >= p * n) {
+                    return Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * Recording of the ZooKeeper calls made by the primitives of this
+     * process, to replay them later with Replay. Every call is a record
+     * of varints: operation, session, start time as the difference in
+     * microseconds from the previous record, path, two operation
+     * arguments, result code and latency in microseconds. Paths are
+     * numbered in order of first use, and written out only then. A multi
+     * is followed by its operations, as records of operation, path and
+     * arguments. Watch events are recorded as calls with the event type
+     * as argument.
+     */
+    static class Trace {
+        static final int MAGIC = 0x5a4b5452;
+        static final byte CREATE = 1;
+        static final byte EXISTS = 2;
+        static final byte GET_CHILDREN = 3;
+        static final byte GET_DATA = 4;
+        static final byte SET_DATA = 5;
+        static final byte DELETE = 6;
+        static final byte MULTI = 7;
+        static final byte CHECK = 8;
+        static final byte WATCH = 9;
+        static final String NAMES[] = {null, "create", "exists", "getChildren", "getData", "setData", "delete",
+                "multi", "check", "watch"};
+
+        OutputStream out;
+        HashMap<String, Integer> paths = new HashMap<String, Integer>();
+        long origin = System.nanoTime();
+        long last = 0;
+
+        Trace(OutputStream out) throws IOException {
+            this.out = out;
+            out.write(ByteBuffer.allocate(4).putInt(MAGIC).array());
+        }
+
+        /**
+         * Start recording to file, which is completed when the process
+         * exits
+         *
+         * @param file null not to record
+         * @return
+         */
+        static Trace open(String file) {
+            if (file == null) {
+                return null;
+            }
+            try {
+                final Trace t = new Trace(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    public void run() {
+                        t.close();
+                    }
+                }, "trace-close"));
+                return t;
+            } catch (IOException e) {
+                System.out.println("Not recording a trace: " + e.toString());
+                return null;
+            }
+        }
+
+        /**
+         * Record a finished call, or a watch event when start is 0
+         *
+         * @param session
+         * @param op
+         * @param path
+         * @param a size of the data, watch flag or event type
+         * @param b create mode or version
+         * @param rc
+         * @param start
+         */
+        void call(int session, byte op, String path, int a, int b, int rc, long start) {
+            long now = System.nanoTime();
+            ByteArrayOutputStream record = new ByteArrayOutputStream(32);
+            synchronized (this) {
+                header(record, op, session, start == 0 ? now : start);
+                operation(record, path, a, b);
+                writeVarlong(record, zigzag(rc));
+                writeVarlong(record, start == 0 ? 0 : (now - start) / 1000);
+                write(record);
+            }
+        }
+
+        void multi(int session, List<Op> ops, int rc, long start) {
+            long now = System.nanoTime();
+            ByteArrayOutputStream record = new ByteArrayOutputStream(32 + 8 * ops.size());
+            synchronized (this) {
+                header(record, MULTI, session, start);
+                operation(record, null, ops.size(), 0);
+                for (Op op : ops) {
+                    Record r = op.toRequestRecord();
+                    if (r instanceof CreateRequest) {
+                        record.write(CREATE);
+                        operation(record, op.getPath(), ((CreateRequest) r).getData().length,
+                                ((CreateRequest) r).getFlags());
+                    } else if (r instanceof SetDataRequest) {
+                        record.write(SET_DATA);
+                        operation(record, op.getPath(), ((SetDataRequest) r).getData().length,
+                                ((SetDataRequest) r).getVersion());
+                    } else if (r instanceof DeleteRequest) {
+                        record.write(DELETE);
+                        operation(record, op.getPath(), 0, ((DeleteRequest) r).getVersion());
+                    } else {
+                        record.write(CHECK);
+                        operation(record, op.getPath(), 0, ((CheckVersionRequest) r).getVersion());
+                    }
+                }
+                writeVarlong(record, zigzag(rc));
+                writeVarlong(record, (now - start) / 1000);
+                write(record);
+            }
+        }
+
+        void header(ByteArrayOutputStream record, byte op, int session, long start) {
+            long micros = (start - origin) / 1000;
+            record.write(op);
+            writeVarlong(record, session);
+            writeVarlong(record, zigzag(micros - last));
+            last = micros;
+        }
+
+        void operation(ByteArrayOutputStream record, String path, int a, int b) {
+            if (path == null) {
+                writeVarlong(record, 0);
+            } else {
+                Integer id = paths.get(path);
+                if (id == null) {
+                    id = paths.size() + 1;
+                    paths.put(path, id);
+                    byte name[] = path.getBytes(StandardCharsets.UTF_8);
+                    writeVarlong(record, id);
+                    writeVarlong(record, name.length);
+                    record.write(name, 0, name.length);
+                } else {
+                    writeVarlong(record, id);
+                }
+            }
+            writeVarlong(record, zigzag(a));
+            writeVarlong(record, zigzag(b));
+        }
+
+        void write(ByteArrayOutputStream record) {
+            try {
+                record.writeTo(out);
+            } catch (IOException e) {
+                System.out.println("Trace stopped: " + e.toString());
+                trace = null;
+            }
+        }
+
+        synchronized void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        /**
+         * Read a whole trace
+         *
+         * @param file
+         * @return the calls, in the order they were recorded
+         * @throws IOException
+         */
+        static List<Call> load(File file) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (b.remaining() < 4 || b.getInt() != MAGIC) {
+                throw new IOException("Not a trace: " + file);
+            }
+            ArrayList<Call> calls = new ArrayList<Call>();
+            ArrayList<String> names = new ArrayList<String>();
+            names.add(null);
+            long time = 0;
+            try {
+                while (b.hasRemaining()) {
+                    Call c = new Call(b.get());
+                    c.session = (int) readVarlong(b);
+                    time += unzigzag(readVarlong(b));
+                    c.start = time;
+                    c.read(b, names);
+                    if (c.op == MULTI) {
+                        c.ops = new Call[c.a];
+                        for (int i = 0; i < c.a; i++) {
+                            c.ops[i] = new Call(b.get());
+                            c.ops[i].read(b, names);
+                        }
+                    }
+                    c.rc = (int) unzigzag(readVarlong(b));
+                    c.latency = readVarlong(b);
+                    calls.add(c);
+                }
+            } catch (BufferUnderflowException e) {
+                // Cut short by the process ending, keep what is whole
+            }
+            return calls;
+        }
+
+        /**
+         * One recorded call
+         */
+        static class Call {
+            byte op;
+            int session;
+            long start;
+            String path;
+            int a;
+            int b;
+            int rc;
+            long latency;
+            Call ops[];
+
+            Call(byte op) {
+                this.op = op;
+            }
+
+            void read(ByteBuffer buffer, ArrayList<String> names) {
+                int id = (int) readVarlong(buffer);
+                if (id == names.size()) {
+                    byte name[] = new byte[(int) readVarlong(buffer)];
+                    buffer.get(name);
+                    names.add(new String(name, StandardCharsets.UTF_8));
+                }
+                path = names.get(id);
+                a = (int) unzigzag(readVarlong(buffer));
+                b = (int) unzigzag(readVarlong(buffer));
+            }
+        }
+
+        static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        static long unzigzag(long v) {
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        static void writeVarlong(ByteArrayOutputStream b, long v) {
+            while ((v & ~0x7FL) != 0) {
+                b.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            b.write((int) v);
+        }
+
+        static long readVarlong(ByteBuffer b) {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte next = b.get();
+                v |= (long) (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+    }
+
+    /**
+     * Barrier
+     */
+    static public class Barrier extends SyncPrimitive {
+        // Created by the last participant to arrive
+        static final String READY = "ready";
+
+        int size;
+        String name;
+        String pathName;
+        // Completed by the next watch event. Waiting on a future parks
+        // virtual threads without pinning their carrier, as waiting on the
+        // mutex would.
+        volatile CompletableFuture<Boolean> signal = new CompletableFuture<Boolean>();
+
+        /**
+         * Barrier constructor, naming this participant after the local
+         * host
+         *
+         * @param address
+         * @param root
+         * @param size
+         */
+        Barrier(String address, String root, int size) {
+            this(address, root, size, hostName());
+        }
+
+        /**
+         * Barrier constructor
+         *
+         * @param address
+         * @param root
+         * @param size
+         * @param name Name of this participant's node
+         */
+        Barrier(String address, String root, int size, String name) {
+            super(address);
+            this.root = root;
+            this.size = size;
+            this.name = name;
+
+            // Create barrier node
+            if (zk != null) {
+                try {
+                    ensure(root);
+                } catch (KeeperException e) {
+                    System.out
+                            .println("Keeper exception when instantiating queue: "
+                                    + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+
+        static String hostName() {
+            try {
+                return InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException e) {
+                System.out.println(e.toString());
+                return null;
+            }
+        }
+
+        /**
+         * Join barrier. Only the last participant to arrive sees the barrier
+         * full, and it creates the ready node; everybody else just watches
+         * for that node, so a join does not wake up the other participants.
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+
+        boolean enter() throws KeeperException, InterruptedException{
+            long start = System.nanoTime();
+            pathName = create(root + "/" + name, new byte[0], CreateMode.EPHEMERAL_SEQUENTIAL);
+            if (participants().size() >= size) {
+                try {
+                    create(root + "/" + READY, new byte[0], CreateMode.PERSISTENT);
+                } catch (KeeperException.NodeExistsException e) {
+                    // Someone else also saw the barrier full
+                }
+                metrics.record("enterWait", start);
+                return true;
+            }
+            while (true) {
+                CompletableFuture<Boolean> woken = arm();
+                try {
+                    if (exists(root + "/" + READY, this) != null) {
+                        metrics.record("enterWait", start);
+                        return true;
+                    }
+                } catch (KeeperException.SessionExpiredException e) {
+                    // Woken up again once the session is recovered
+                }
+                await(woken, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Wait until all reach barrier. The lowest participant leaves last:
+         * it watches only the highest one, and every other participant
+         * deletes its node and watches only the lowest one.
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+
+        boolean leave() throws KeeperException, InterruptedException{
+            long start = System.nanoTime();
+            while (true) {
+                CompletableFuture<Boolean> woken = arm();
+                // Renamed if the session expired
+                String me = pathName.substring(root.length() + 1);
+                List<String> list = participants();
+                if (list.isEmpty()) {
+                    metrics.record("leaveWait", start);
+                    return true;
+                }
+                String lowest = list.get(0);
+                if (list.size() == 1 && lowest.equals(me)) {
+                    delete(pathName, -1);
+                    try {
+                        delete(root + "/" + READY, -1);
+                    } catch (KeeperException.NoNodeException e) {
+                        // Already lowered
+                    }
+                    metrics.record("leaveWait", start);
+                    return true;
+                }
+                String watched;
+                if (lowest.equals(me)) {
+                    watched = list.get(list.size() - 1);
+                } else {
+                    if (list.contains(me)) {
+                        delete(pathName, -1);
+                    }
+                    watched = lowest;
+                }
+                try {
+                    if (exists(root + "/" + watched, this) == null) {
+                        continue;
+                    }
+                } catch (KeeperException.SessionExpiredException e) {
+                    // Woken up again once the session is recovered
+                }
+                await(woken, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Future the next watch event completes, taken before looking at
+         * the nodes so an event in between is not missed
+         *
+         * @return
+         */
+        CompletableFuture<Boolean> arm() {
+            CompletableFuture<Boolean> woken = new CompletableFuture<Boolean>();
+            signal = woken;
+            return woken;
+        }
+
+        public void process(WatchedEvent event) {
+            super.process(event);
+            // Watches outlive a disconnection, and recover() wakes up
+            // waiters after an expiry. The session may connect before the
+            // constructor got to set up signal.
+            CompletableFuture<Boolean> s = signal;
+            if (s != null && (event.getType() != Event.EventType.None
+                    || event.getState() == Event.KeeperState.SyncConnected)) {
+                s.complete(true);
+            }
+        }
+
+        void renamed(String from, String to) {
+            if (from.equals(pathName)) {
+                pathName = to;
+            }
+        }
+
+        /**
+         * Participant nodes under root, in arrival order
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        List<String> participants() throws KeeperException, InterruptedException{
+            List<String> list = getChildren(root, false);
+            list.remove(READY);
+            Collections.sort(list, SEQUENCE_ORDER);
+            return list;
+        }
+    }
+
+    /**
+     * Barrier that the same participants pass round after round. Round g
+     * gathers under root/gen-g: each arrival creates a persistent
+     * sequential node named after its participant, whose sequence number
+     * is its arrival order, and the last to arrive creates ready together
+     * with the node of the next round. Everybody else watches ready, so a
+     * round costs every participant two round trips and one notification
+     * whatever the number of participants, and nobody lists the others.
+     * Each arrival first deletes its node of the round before, and the
+     * last one deletes what is left of it. A participant that joins as a
+     * round fills arrives past its last place; it waits for that round to
+     * be released and arrives again at the next one.
+     */
+    static public class CyclicBarrier extends SyncPrimitive {
+        static final String GENERATION = "gen-";
+
+        int size;
+        String id;
+        // Round this participant arrives at next
+        long generation;
+        // Arrival node of the round this participant passed last
+        String arrival;
+        volatile CompletableFuture<Boolean> signal = new CompletableFuture<Boolean>();
+
+        /**
+         * Constructor of cyclic barrier. Joins at the round still open.
+         *
+         * @param address
+         * @param root
+         * @param size Participants per round
+         * @param id Name of this participant, unique among them
+         */
+        CyclicBarrier(String address, String root, int size, String id) {
+            super(address);
+            if (id.isEmpty() || id.indexOf('/') >= 0) {
+                throw new IllegalArgumentException("Not a participant name: " + id);
+            }
+            this.root = root;
+            this.size = size;
+            this.id = id;
+            if (zk != null) {
+                try {
+                    ensure(root);
+                    generation = latest();
+                    if (generation < 0) {
+                        generation = 0;
+                        try {
+                            create(generation(0), new byte[0], CreateMode.PERSISTENT);
+                        } catch (KeeperException.NodeExistsException e) {
+                            // Opened by another participant
+                        }
+                    }
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating cyclic barrier: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+
+        String generation(long g) {
+            return root + "/" + GENERATION + g;
+        }
+
+        /**
+         * Newest round under root, or -1 if there is none yet
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        long latest() throws KeeperException, InterruptedException{
+            long g = -1;
+            for (String child : getChildren(root, false)) {
+                if (child.startsWith(GENERATION)) {
+                    g = Math.max(g, Long.parseLong(child.substring(GENERATION.length())));
+                }
+            }
+            return g;
+        }
+
+        /**
+         * Wait until size participants arrived at this round, and move on
+         * to the next one
+         *
+         * @return arrival order of this participant in the round, from 0
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int await() throws KeeperException, InterruptedException{
+            long start = System.nanoTime();
+            leave();
+            while (true) {
+                String current = generation(generation);
+                String ready = current + "/" + Barrier.READY;
+                try {
+                    arrival = create(current + "/p-" + id + "-", new byte[0], CreateMode.PERSISTENT_SEQUENTIAL);
+                } catch (KeeperException.NoNodeException e) {
+                    // Passed and deleted without this participant
+                    generation = latest();
+                    continue;
+                }
+                int index = (int) sequence(arrival);
+                if (index == size - 1) {
+                    open(current, ready);
+                } else if (index < size) {
+                    pass(current, ready);
+                } else {
+                    // Round already full: arrive again at the next one,
+                    // which is opened together with ready
+                    metrics.count("late");
+                    leave();
+                    pass(current, ready);
+                    generation++;
+                    continue;
+                }
+                generation++;
+                metrics.record("awaitWait", start);
+                return index;
+            }
+        }
+
+        /**
+         * Wait until the round current is released, by the creation of
+         * ready, or already deleted with it
+         *
+         * @param current
+         * @param ready
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void pass(String current, String ready) throws KeeperException, InterruptedException{
+            while (true) {
+                CompletableFuture<Boolean> woken = arm();
+                try {
+                    if (exists(ready, this) != null || exists(current, false) == null) {
+                        return;
+                    }
+                } catch (KeeperException.SessionExpiredException e) {
+                    // Woken up again once the session is recovered
+                }
+                // True when woken by the creation of ready, the only
+                // node watched, so it need not be looked at again
+                if (await(woken, Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Delete the arrival node of the last round arrived at, if still
+         * there: the round may have been deleted, or the node reaped
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void leave() throws KeeperException, InterruptedException{
+            if (arrival != null) {
+                try {
+                    delete(arrival, -1);
+                } catch (KeeperException.NoNodeException e) {
+                    // Deleted with its round, or reaped
+                }
+                arrival = null;
+            }
+        }
+
+        /**
+         * Last arrival: release the round, open the next one and delete
+         * the round before, which everybody has left by now. If a
+         * participant left that round without closing, its node stays and
+         * the round is released without the cleanup.
+         *
+         * @param current
+         * @param ready
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void open(String current, String ready) throws KeeperException, InterruptedException{
+            List<Op> ops = new ArrayList<Op>();
+            ops.add(Op.create(ready, new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            ops.add(Op.create(generation(generation + 1), new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            if (generation > 0) {
+                String previous = generation(generation - 1);
+                List<Op> cleanup = new ArrayList<Op>(ops);
+                cleanup.add(Op.delete(previous + "/" + Barrier.READY, -1));
+                cleanup.add(Op.delete(previous, -1));
+                try {
+                    multi(cleanup);
+                    return;
+                } catch (KeeperException.NotEmptyException e) {
+                    metrics.count("leftover");
+                } catch (KeeperException.NoNodeException e) {
+                    // Already deleted
+                }
+            }
+            multi(ops);
+        }
+
+        /**
+         * Future the next watch event completes, taken before looking at
+         * the nodes so an event in between is not missed
+         *
+         * @return
+         */
+        CompletableFuture<Boolean> arm() {
+            CompletableFuture<Boolean> woken = new CompletableFuture<Boolean>();
+            signal = woken;
+            return woken;
+        }
+
+        public void process(WatchedEvent event) {
+            super.process(event);
+            CompletableFuture<Boolean> s = signal;
+            if (s != null && (event.getType() != Event.EventType.None
+                    || event.getState() == Event.KeeperState.SyncConnected)) {
+                s.complete(event.getType() == Event.EventType.NodeCreated);
+            }
+        }
+
+        /**
+         * Leave: delete the arrival node of the last round passed
+         */
+        void close() {
+            if (arrival != null) {
+                try {
+                    delete(arrival, -1);
+                } catch (KeeperException.NoNodeException e) {
+                    // Deleted with its round
+                } catch (KeeperException e) {
+                    LOG.warn("Arrival node " + arrival + " left behind", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                arrival = null;
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Producer-Consumer queue
+     */
+    static public class Queue extends SyncPrimitive {
+        // Largest multi request we send, below the server's jute.maxbuffer,
+        // and the serialized size of a create op besides its path and data
+        static final int MAX_REQUEST = Integer.getInteger("jute.maxbuffer", 0xfffff) - 1024;
+        static final int OP_OVERHEAD = 64;
+        // Elements fetched per round trip while reassembling submissions
+        static final int SUBMISSION_BATCH = 16;
+
+        // Parents of the elements: root itself, or one per shard
+        Shard shards[];
+        HashMap<String, Shard> byPath = new HashMap<String, Shard>();
+        // Shard heads() looks at first, and count of wakeup() calls
+        int next = 0;
+        int wakeups = 0;
+        // Submissions read from the queue but not yet returned, and chunks
+        // of submissions still missing some of their chunks
+        ArrayDeque<Submission> complete = new ArrayDeque<Submission>();
+        Reassembler partial = new Reassembler();
+
+        /**
+         * Constructor of producer-consumer queue
+         *
+         * @param address
+         * @param name
+         */
+        Queue(String address, String name) {
+            this(address, name, 1);
+        }
+
+        /**
+         * Constructor of a sharded producer-consumer queue. Elements go
+         * under root/shard-k, k chosen by producer id, so each producer's
+         * elements stay in order while the shards are drained round-robin.
+         * A single shard keeps the elements directly under root.
+         *
+         * @param address
+         * @param name
+         * @param count Number of shards
+         */
+        Queue(String address, String name, int count) {
+            super(address);
+            this.root = name;
+            shards = new Shard[Math.max(1, count)];
+            for (int k = 0; k < shards.length; k++) {
+                shards[k] = new Shard(shards.length == 1 ? root : root + "/shard-" + k);
+                byPath.put(shards[k].path, shards[k]);
+                dispatcher.register(shards[k].path, this, Event.EventType.NodeChildrenChanged);
+            }
+            // Create ZK node name
+            if (zk != null) {
+                try {
+                    String paths[] = new String[shards.length];
+                    for (int k = 0; k < shards.length; k++) {
+                        paths[k] = shards[k].path;
+                    }
+                    ensure(paths);
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating queue: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+
+        /**
+         * Add element to the queue.
+         *
+         * @param i
+         * @return
+         */
+
+        boolean produce(int i, int id) throws KeeperException, InterruptedException{
+            // Add child with value i
+            create(shardFor(id).path + "/element", element(i, id), CreateMode.PERSISTENT_SEQUENTIAL);
+
+            return true;
+        }
+
+        /**
+         * Add all values to the queue in as few atomic transactions as the
+         * server request size limit allows. Elements of one transaction get
+         * consecutive sequence numbers.
+         *
+         * @param values
+         * @param id
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean produceAll(int values[], int id) throws KeeperException, InterruptedException{
+            List<byte[]> elements = new ArrayList<byte[]>(values.length);
+            for (int i : values) {
+                elements.add(element(i, id));
+            }
+            createAll(shardFor(id), elements);
+
+            return true;
+        }
+
+        /**
+         * Add all answers of a student as one packed submission, split into
+         * chunks only when it does not fit in a single element.
+         *
+         * @param id
+         * @param answers
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean produceSubmission(int id, int answers[]) throws KeeperException, InterruptedException{
+            createAll(shardFor(id), chunks(id, answers));
+
+            return true;
+        }
+
+        /**
+         * Elements of a submission, each small enough for one create
+         *
+         * @param id
+         * @param answers
+         * @return
+         */
+        List<byte[]> chunks(int id, int answers[]) {
+            int maxChunk = MAX_REQUEST - OP_OVERHEAD - (shardFor(id).path + "/element").length();
+            return Submission.encode(id, answers, maxChunk);
+        }
+
+        /**
+         * Create one element per payload, batching them into multi
+         * transactions below the request size limit
+         *
+         * @param shard
+         * @param elements
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void createAll(Shard shard, List<byte[]> elements) throws KeeperException, InterruptedException{
+            String path = shard.path + "/element";
+            List<Op> ops = new ArrayList<Op>();
+            int size = 0;
+            for (byte[] value : elements) {
+                int cost = OP_OVERHEAD + path.length() + value.length;
+                if (!ops.isEmpty() && size + cost > MAX_REQUEST) {
+                    multi(ops);
+                    ops = new ArrayList<Op>();
+                    size = 0;
+                }
+                ops.add(Op.create(path, value, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL));
+                size += cost;
+            }
+            if (!ops.isEmpty()) {
+                multi(ops);
+            }
+        }
+
+        /**
+         * Index of the shard holding an element
+         *
+         * @param path
+         * @return
+         */
+        int shardOf(String path) {
+            String parent = path.substring(0, path.lastIndexOf('/'));
+            for (int k = 0; k < shards.length; k++) {
+                if (shards[k].path.equals(parent)) {
+                    return k;
+                }
+            }
+            throw new IllegalArgumentException("Not an element of " + root + ": " + path);
+        }
+
+        /**
+         * Payload of a queue element
+         *
+         * @param i
+         * @param id
+         * @return
+         */
+        Shard shardFor(int id) {
+            return shards[(id % shards.length + shards.length) % shards.length];
+        }
+
+        static byte[] element(int i, int id) {
+            ByteBuffer b = ByteBuffer.allocate(8);
+            b.putInt(i);
+            b.putInt(id);
+            return b.array();
+        }
+
+        /**
+         * Remove first element from the queue.
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int[] consume() throws KeeperException, InterruptedException{
+            return consumeBatch(1)[0];
+        }
+
+        /**
+         * Remove up to max elements from the head of the queue, blocking
+         * until at least one is available. Elements come out in sequence
+         * order, each as {value, id}.
+         *
+         * @param max
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        int[][] consumeBatch(int max) throws KeeperException, InterruptedException{
+            byte elements[][] = consumeRaw(max);
+            int ret[][] = new int[elements.length][];
+            for (int i = 0; i < elements.length; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap(elements[i]);
+                ret[i] = new int[] {buffer.getInt(), buffer.getInt()};
+            }
+            return ret;
+        }
+
+        /**
+         * Remove the next complete submission from the queue, reassembling
+         * it from its chunks. Chunks of other students read along the way
+         * are kept until their submission is complete.
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        Submission consumeSubmission() throws KeeperException, InterruptedException{
+            while (complete.isEmpty()) {
+                for (byte[] element : consumeRaw(SUBMISSION_BATCH)) {
+                    Submission whole = partial.add(element);
+                    if (whole != null) {
+                        complete.add(whole);
+                    }
+                }
+            }
+            return complete.poll();
+        }
+
+        /**
+         * Remove up to max elements from the head of the queue, blocking
+         * until at least one is available, and return their payloads in
+         * sequence order.
+         *
+         * @param max
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        byte[][] consumeRaw(int max) throws KeeperException, InterruptedException{
+            if (max < 1) {
+                throw new IllegalArgumentException("Batch size must be positive: " + max);
+            }
+            while (true) {
+                // Claimed outside of the mutex: the callbacks run on the
+                // event thread, which also needs the mutex to deliver watches
+                byte ret[][] = claim(heads(max));
+                if (ret.length > 0) {
+                    return ret;
+                }
+            }
+        }
+
+        /**
+         * Take up to max element paths off the head of one shard's local
+         * view, visiting the shards round-robin and blocking until at least
+         * one element is available. The elements are not claimed until
+         * they are deleted.
+         *
+         * @param max
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        String[] heads(int max) throws KeeperException, InterruptedException{
+            synchronized (mutex) {
+                int woken = wakeups;
+                while (true) {
+                    for (int k = 0; k < shards.length; k++) {
+                        Shard shard = shards[next];
+                        next = (next + 1) % shards.length;
+                        if (!shard.owned) {
+                            continue;
+                        }
+                        if (shard.head == shard.pending.length && shard.stale) {
+                            try {
+                                shard.refresh(this);
+                            } catch (KeeperException.SessionExpiredException e) {
+                                // Listed again once recover() has a new session
+                                shard.stale = true;
+                                mutex.wait(Session.CONNECT_TIMEOUT);
+                                continue;
+                            }
+                        }
+                        if (shard.head < shard.pending.length) {
+                            int n = Math.min(max, shard.pending.length - shard.head);
+                            String ret[] = new String[n];
+                            for (int i = 0; i < n; i++) {
+                                ret[i] = shard.path + "/" + shard.pending[shard.head++];
+                            }
+                            metrics.gauge("depth", depth());
+                            return ret;
+                        }
+                    }
+                    if (wakeups != woken) {
+                        return new String[0];
+                    }
+                    mutex.wait();
+                }
+            }
+        }
+
+        /**
+         * Elements listed in the local views and not yet taken. Must be
+         * called holding the mutex.
+         *
+         * @return
+         */
+        int depth() {
+            int depth = 0;
+            for (Shard shard : shards) {
+                depth += shard.pending.length - shard.head;
+            }
+            return depth;
+        }
+
+        /**
+         * Make threads blocked in heads() return without elements
+         */
+        void wakeup() {
+            synchronized (mutex) {
+                wakeups++;
+                mutex.notifyAll();
+            }
+        }
+
+        /**
+         * Choose whether heads() takes elements from shard k. A shard given
+         * up starts over from a fresh listing if it is taken back later.
+         *
+         * @param k
+         * @param owned
+         */
+        void own(int k, boolean owned) {
+            synchronized (mutex) {
+                Shard shard = shards[k];
+                if (shard.owned != owned) {
+                    shard.owned = owned;
+                    shard.stale = true;
+                    shard.head = shard.pending.length;
+                    mutex.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Read the given elements without deleting them, with pipelined
+         * asynchronous requests. Elements already gone read as null.
+         *
+         * @param paths
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        byte[][] read(String paths[]) throws KeeperException, InterruptedException{
+            Claim c = new Claim(paths.length, null);
+            for (int i = 0; i < paths.length; i++) {
+                getData(paths[i], c, i);
+            }
+            c.done.await();
+            return c.data;
+        }
+
+        /**
+         * Drop the local views, so elements whose claim failed for reasons
+         * other than being taken are listed and tried again
+         */
+        void invalidate() {
+            synchronized (mutex) {
+                for (Shard shard : shards) {
+                    shard.stale = true;
+                    shard.head = shard.pending.length;
+                }
+                mutex.notifyAll();
+            }
+        }
+
+        /**
+         * Read and then delete one element without waiting for the
+         * replies. The delete is only sent once the data is read, at the
+         * version read, so f never sees an element claimed it could not
+         * read.
+         *
+         * @param path
+         * @param f
+         */
+        void claimAsync(String path, final Fetch f) {
+            getData(path, new AsyncCallback.DataCallback() {
+                public void processResult(int rc, String path, Object ctx, byte data[], Stat stat) {
+                    f.processResult(rc, path, ctx, data, stat);
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        delete(path, stat.getVersion(), f, ctx);
+                    } else {
+                        f.processResult(rc, path, ctx);
+                    }
+                }
+            }, null);
+        }
+
+        /**
+         * Read one element without deleting it and without waiting for the
+         * reply. f sees it as claimed if it could be read.
+         *
+         * @param path
+         * @param f
+         */
+        void readAsync(String path, final Fetch f) {
+            getData(path, new AsyncCallback.DataCallback() {
+                public void processResult(int rc, String path, Object ctx, byte data[], Stat stat) {
+                    f.processResult(rc, path, ctx, data, stat);
+                    f.processResult(rc, path, ctx);
+                }
+            }, null);
+        }
+
+        /**
+         * Read and delete the given elements with pipelined asynchronous
+         * requests, each delete sent once its read is answered, so the
+         * whole batch costs two round trips. Returns the elements claimed;
+         * elements another consumer deleted first are skipped, and those
+         * that failed otherwise are listed and tried again.
+         *
+         * @param paths
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        byte[][] claim(String paths[]) throws KeeperException, InterruptedException{
+            Claim c = new Claim(paths.length, this);
+            for (int i = 0; i < paths.length; i++) {
+                getData(paths[i], c, i);
+            }
+            c.done.await();
+
+            int claimed = 0;
+            boolean failed = false;
+            byte ret[][] = new byte[paths.length][];
+            for (int i = 0; i < paths.length; i++) {
+                if (c.deleted[i] == KeeperException.Code.OK.intValue()) {
+                    ret[claimed++] = c.data[i];
+                } else if (c.deleted[i] != KeeperException.Code.NONODE.intValue()) {
+                    System.out.println("Keeper exception when claiming " + paths[i] + ": "
+                            + KeeperException.Code.get(c.deleted[i]));
+                    failed = true;
+                }
+            }
+            if (failed) {
+                invalidate();
+            }
+            return Arrays.copyOf(ret, claimed);
+        }
+
+        public void process(WatchedEvent event) {
+            watched(event);
+            if (event.getState() == Event.KeeperState.Expired) {
+                return;
+            }
+            synchronized (mutex) {
+                if (event.getType() == Event.EventType.NodeChildrenChanged) {
+                    Shard shard = byPath.get(event.getPath());
+                    if (shard != null) {
+                        shard.stale = true;
+                    }
+                }
+                mutex.notifyAll();
+            }
+        }
+
+        void recover(Session session) throws KeeperException, InterruptedException{
+            // Children watches went with the session, list every shard again
+            synchronized (mutex) {
+                for (Shard shard : shards) {
+                    shard.stale = true;
+                }
+            }
+            super.recover(session);
+        }
+
+        /**
+         * Parent of a share of the elements, with its local view of pending
+         * elements in sequence order. The view is reloaded only once it is
+         * exhausted and the children watch has fired.
+         */
+        static class Shard {
+            String path;
+            String pending[] = new String[0];
+            int head = 0;
+            boolean stale = true;
+            // Whether heads() takes elements from this shard
+            boolean owned = true;
+
+            Shard(String path) {
+                this.path = path;
+            }
+
+            /**
+             * Reload the view and leave a children watch on path, so it is
+             * only reloaded after it changes. Must be called holding the
+             * queue's mutex.
+             *
+             * @param q Queue of the shard
+             */
+            void refresh(Queue q) throws KeeperException, InterruptedException{
+                stale = false;
+                List<String> list = q.getChildren(path, true);
+                String names[] = list.toArray(new String[list.size()]);
+                Arrays.sort(names, SEQUENCE_ORDER);
+                pending = names;
+                head = 0;
+            }
+        }
+
+        /**
+         * Replies of one asynchronous claim
+         */
+        static abstract class Fetch implements AsyncCallback.DataCallback, AsyncCallback.VoidCallback {
+            byte data[];
+            String path;
+
+            public void processResult(int rc, String path, Object ctx, byte b[], Stat stat) {
+                data = b;
+                this.path = path;
+            }
+
+            public void processResult(int rc, String path, Object ctx) {
+                if (rc == KeeperException.Code.OK.intValue() && data != null) {
+                    claimed(data);
+                } else {
+                    lost(rc);
+                }
+            }
+
+            /**
+             * The element was deleted by us
+             */
+            abstract void claimed(byte data[]);
+
+            /**
+             * The element was not claimed; NONODE means someone else took it
+             */
+            abstract void lost(int rc);
+        }
+
+        /**
+         * Collects the replies of one pipelined read, or claim when q is
+         * set: each element read is then deleted at the version read, and
+         * an element not read is never deleted
+         */
+        static class Claim implements AsyncCallback.DataCallback, AsyncCallback.VoidCallback {
+            byte data[][];
+            int deleted[];
+            CountDownLatch done;
+            Queue q;
+
+            Claim(int n, Queue q) {
+                data = new byte[n][];
+                deleted = new int[n];
+                done = new CountDownLatch(n);
+                this.q = q;
+            }
+
+            public void processResult(int rc, String path, Object ctx, byte b[], Stat stat) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    data[(Integer) ctx] = b;
+                    if (q != null) {
+                        q.delete(path, stat.getVersion(), this, ctx);
+                        return;
+                    }
+                }
+                deleted[(Integer) ctx] = rc;
+                done.countDown();
+            }
+
+            public void processResult(int rc, String path, Object ctx) {
+                deleted[(Integer) ctx] = rc;
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Asynchronous producer of submissions to a queue. submit() only adds
+     * to a bounded outbox, and to a spill file when there is one, and a
+     * flusher thread sends the outbox in batches of up to batch
+     * submissions, waiting up to linger ms for a batch to fill, as
+     * asynchronous multis with at most inflight of them unanswered. Each
+     * multi also sets the producer's marker node to the last element it
+     * wrote, at the version the multi before leaves, so a batch retried
+     * after its reply was lost is found already written instead of written
+     * twice, and a spill file replayed after a crash skips what made it.
+     * Submitters block while the outbox is full.
+     */
+    static public class Outbox extends SyncPrimitive implements AsyncCallback.MultiCallback {
+        static final int BATCH = Integer.getInteger("outbox.batch", 64);
+        static final long LINGER = Long.getLong("outbox.linger", 5);
+        static final int CAPACITY = Integer.getInteger("outbox.capacity", 1024);
+        static final int INFLIGHT = Integer.getInteger("outbox.inflight", 4);
+        // Wait before retrying a batch that failed
+        static final long BACKOFF = 100;
+        // Request size taken by the marker update of each multi
+        static final int MARKER_COST = 128;
+
+        Queue q;
+        String marker;
+        int batch;
+        long linger;
+        // Last element known written, as sequence of its submission and
+        // chunk index, and the version of the marker that says so
+        long writtenSeq = 0;
+        int writtenChunk = Integer.MAX_VALUE;
+        int version;
+        // Last element sent, and the version of the marker once the
+        // multis in flight are written
+        long sentSeq;
+        int sentChunk;
+        int sentVersion;
+        // Multis sent and not answered, at most inflight
+        int inFlight;
+        int inflight = INFLIGHT;
+        // Set when a multi fails, until recover() sends again
+        volatile boolean failed;
+        KeeperException.Code code;
+        // Sequence number of the next submission
+        long next;
+        // Free places in the outbox, taken by submit() and given back once
+        // a submission is written
+        java.util.concurrent.Semaphore space;
+        LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<Entry>();
+        // Submissions taken from pending and not yet written, in order
+        ArrayDeque<Entry> unacked = new ArrayDeque<Entry>();
+        FileChannel spill;
+        Thread flusher;
+        volatile boolean closed;
+
+        /**
+         * Outbox of the producer called name, with the settings of
+         * -Doutbox.batch, -Doutbox.linger and -Doutbox.capacity, spilling
+         * to -Doutbox.spill if set
+         *
+         * @param address
+         * @param q
+         * @param name Name of the producer, unique to it and the same across
+         *            restarts that replay its spill file
+         */
+        Outbox(String address, Queue q, String name) {
+            this(address, q, name, CAPACITY, BATCH, LINGER,
+                    System.getProperty("outbox.spill") == null ? null : new File(System.getProperty("outbox.spill")));
+        }
+
+        /**
+         * Constructor of outbox
+         *
+         * @param address
+         * @param q Queue the submissions go to
+         * @param name Name of the producer
+         * @param capacity Submissions held before submit() blocks
+         * @param batch Most submissions written at once
+         * @param linger Longest wait, in ms, for a batch to fill
+         * @param spill Spill file, or null to keep the outbox only in memory
+         */
+        Outbox(String address, Queue q, String name, int capacity, int batch, long linger, File spill) {
+            super(address);
+            this.q = q;
+            this.root = q.root + "-outbox";
+            this.marker = root + "/" + name;
+            this.batch = Math.max(1, batch);
+            this.linger = linger;
+            if (zk != null) {
+                try {
+                    ensure(root);
+                    try {
+                        create(marker, position(0, Integer.MAX_VALUE), CreateMode.PERSISTENT);
+                    } catch (KeeperException.NodeExistsException e) {
+                        // Written before by this producer
+                    }
+                    reload();
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating outbox: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+            next = writtenSeq + 1;
+            sentSeq = writtenSeq;
+            sentChunk = writtenChunk;
+            sentVersion = version;
+            if (spill != null) {
+                try {
+                    this.spill = FileChannel.open(spill.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                    replay();
+                } catch (IOException e) {
+                    System.out.println("Could not open spill file: " + e.toString());
+                    this.spill = null;
+                }
+            }
+            space = new java.util.concurrent.Semaphore(capacity - pending.size());
+            flusher = new Thread(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            }, "outbox-" + name);
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        /**
+         * Outbox named by -Doutbox, if set
+         *
+         * @param address
+         * @param q
+         * @return
+         */
+        static Outbox of(String address, Queue q) {
+            String name = System.getProperty("outbox");
+            return name == null ? null : new Outbox(address, q, name);
+        }
+
+        /**
+         * Hand in the answers of a student, blocking only while the outbox
+         * is full
+         *
+         * @param id
+         * @param answers
+         * @return completed with true once the submission is in the queue
+         * @throws InterruptedException
+         */
+        CompletableFuture<Boolean> submit(int id, int answers[]) throws InterruptedException{
+            long start = System.nanoTime();
+            if (closed) {
+                throw new IllegalStateException("Outbox closed: " + marker);
+            }
+            if (!space.tryAcquire()) {
+                metrics.count("full");
+                space.acquire();
+                metrics.record("fullWait", start);
+            }
+            Entry e = new Entry(id, answers.clone());
+            synchronized (this) {
+                e.seq = next++;
+                if (spill != null) {
+                    try {
+                        spill.write(e.record());
+                    } catch (IOException ex) {
+                        System.out.println("Could not spill submission " + id + ": " + ex.toString());
+                    }
+                }
+                pending.add(e);
+            }
+            metrics.record("submit", start);
+            return e.written;
+        }
+
+        /**
+         * Flusher: take the first submission, wait up to linger for a batch
+         * to fill and send it, until closed and everything is written
+         */
+        void drain() {
+            List<Entry> entries = new ArrayList<Entry>();
+            try {
+                while (!closed || !pending.isEmpty() || !settled()) {
+                    if (failed) {
+                        recover();
+                        continue;
+                    }
+                    Entry first = pending.poll(BACKOFF, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    entries.add(first);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+                    while (entries.size() < batch) {
+                        Entry e = closed ? pending.poll()
+                                : pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (e == null) {
+                            break;
+                        }
+                        entries.add(e);
+                    }
+                    metrics.gauge("depth", pending.size());
+                    synchronized (this) {
+                        for (Entry e : entries) {
+                            e.chunks = q.chunks(e.id, e.answers);
+                            unacked.add(e);
+                        }
+                    }
+                    send(entries);
+                    entries.clear();
+                    truncate();
+                }
+            } catch (InterruptedException e) {
+                // Closed without draining
+            }
+        }
+
+        /**
+         * Send the entries from the last element sent on, in asynchronous
+         * multi transactions below the request size limit, each moving the
+         * marker from the version the one before leaves it at. A session
+         * runs its requests in order, so once one fails every later one
+         * fails on the version, and recover() sends them again. Waits while
+         * inflight transactions are outstanding.
+         *
+         * @param entries
+         * @throws InterruptedException
+         */
+        void send(List<Entry> entries) throws InterruptedException{
+            int done = 0;
+            int from = 0;
+            while (done < entries.size()) {
+                List<Op> ops = new ArrayList<Op>();
+                int size = MARKER_COST;
+                long seq = 0;
+                int chunk = 0;
+                fill:
+                for (int j = done; j < entries.size(); j++) {
+                    Entry e = entries.get(j);
+                    String path = q.shardFor(e.id).path + "/element";
+                    for (int c = e.seq == sentSeq ? sentChunk + 1 : 0; c < e.chunks.size(); c++) {
+                        int cost = Queue.OP_OVERHEAD + path.length() + e.chunks.get(c).length;
+                        if (!ops.isEmpty() && size + cost > Queue.MAX_REQUEST) {
+                            break fill;
+                        }
+                        ops.add(Op.create(path, e.chunks.get(c), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL));
+                        size += cost;
+                        seq = e.seq;
+                        chunk = c;
+                    }
+                    done = j + 1;
+                }
+                if (ops.isEmpty()) {
+                    continue;
+                }
+                synchronized (this) {
+                    while (inFlight >= inflight && !failed) {
+                        wait();
+                    }
+                    if (failed) {
+                        return;
+                    }
+                    inFlight++;
+                }
+                ops.add(Op.setData(marker, position(seq, chunk), sentVersion++));
+                sentSeq = seq;
+                sentChunk = chunk;
+                multi(ops, this, new Sent(seq, chunk));
+            }
+        }
+
+        /**
+         * Reply of one multi: move the written position and complete the
+         * submissions it finished, or leave the rest to recover()
+         */
+        public void processResult(int rc, String path, Object ctx, List<OpResult> results) {
+            Sent sent = (Sent) ctx;
+            synchronized (this) {
+                inFlight--;
+                if (rc == KeeperException.Code.OK.intValue() && !failed) {
+                    version = ((OpResult.SetDataResult) results.get(results.size() - 1)).getStat().getVersion();
+                    writtenSeq = sent.seq;
+                    writtenChunk = sent.chunk;
+                    acknowledge();
+                } else if (!failed) {
+                    failed = true;
+                    code = KeeperException.Code.get(rc);
+                }
+                metrics.record("flush", sent.start);
+                notifyAll();
+            }
+        }
+
+        /**
+         * After a failed multi, wait for the others in flight, read the
+         * marker and send again what it does not count as written. A
+         * multi whose reply was lost either failed, and is sent again, or
+         * moved the marker, which tells it was written.
+         *
+         * @throws InterruptedException
+         */
+        void recover() throws InterruptedException{
+            List<Entry> entries;
+            synchronized (this) {
+                while (inFlight > 0) {
+                    wait();
+                }
+            }
+            if (code == KeeperException.Code.BADVERSION) {
+                // Written by the try whose reply was lost
+                metrics.count("rewrite");
+            } else {
+                System.out.println("Keeper exception when writing outbox: " + code);
+                Thread.sleep(BACKOFF);
+            }
+            try {
+                reload();
+            } catch (KeeperException e) {
+                code = e.code();
+                return;
+            }
+            synchronized (this) {
+                acknowledge();
+                sentSeq = writtenSeq;
+                sentChunk = writtenChunk;
+                sentVersion = version;
+                failed = false;
+                entries = new ArrayList<Entry>(unacked);
+            }
+            send(entries);
+        }
+
+        /**
+         * Complete the submissions the written position covers, and give
+         * their places back
+         */
+        synchronized void acknowledge() {
+            while (!unacked.isEmpty() && written(unacked.peek())) {
+                unacked.poll().written.complete(true);
+                space.release();
+            }
+        }
+
+        synchronized boolean settled() {
+            return unacked.isEmpty() && inFlight == 0;
+        }
+
+        boolean written(Entry e) {
+            return e.seq < writtenSeq || e.seq == writtenSeq && writtenChunk >= e.chunks.size() - 1;
+        }
+
+        /**
+         * Read the last element written from the marker
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void reload() throws KeeperException, InterruptedException{
+            Stat stat = new Stat();
+            ByteBuffer b = ByteBuffer.wrap(getData(marker, stat));
+            writtenSeq = b.getLong();
+            writtenChunk = b.getInt();
+            version = stat.getVersion();
+        }
+
+        static byte[] position(long seq, int chunk) {
+            return ByteBuffer.allocate(12).putLong(seq).putInt(chunk).array();
+        }
+
+        /**
+         * Put back in the outbox the submissions of the spill file the
+         * marker does not count as written, and cut the file at the first
+         * record that is not whole
+         *
+         * @throws IOException
+         */
+        void replay() throws IOException {
+            ByteBuffer b = ByteBuffer.allocate((int) spill.size());
+            while (b.hasRemaining() && spill.read(b, b.position()) > 0) {
+            }
+            b.flip();
+            long end = 0;
+            while (true) {
+                Entry e = Entry.read(b);
+                if (e == null) {
+                    break;
+                }
+                end = b.position();
+                next = Math.max(next, e.seq + 1);
+                e.chunks = q.chunks(e.id, e.answers);
+                if (!written(e)) {
+                    pending.add(e);
+                }
+            }
+            spill.truncate(end);
+            spill.position(end);
+            if (!pending.isEmpty()) {
+                System.out.println("Replaying " + pending.size() + " submissions from the spill file");
+            }
+        }
+
+        /**
+         * Empty the spill file once everything in it was written
+         */
+        synchronized void truncate() {
+            if (spill != null && pending.isEmpty()) {
+                try {
+                    spill.truncate(0);
+                } catch (IOException e) {
+                    System.out.println("Could not truncate spill file: " + e.toString());
+                }
+            }
+        }
+
+        /**
+         * Stop taking submissions, wait until the outbox is written and
+         * leave
+         */
+        void close() {
+            closed = true;
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    System.out.println("Could not close spill file: " + e.toString());
+                }
+            }
+            super.close();
+        }
+
+        /**
+         * Last element of a multi in flight
+         */
+        static class Sent {
+            long seq;
+            int chunk;
+            long start = System.nanoTime();
+
+            Sent(long seq, int chunk) {
+                this.seq = seq;
+                this.chunk = chunk;
+            }
+        }
+
+        /**
+         * One submission in the outbox. In the spill file it is a record of
+         * length, CRC32 of the rest, sequence, student id, answer count and
+         * answers.
+         */
+        static class Entry {
+            long seq;
+            int id;
+            int answers[];
+            List<byte[]> chunks;
+            CompletableFuture<Boolean> written = new CompletableFuture<Boolean>();
+
+            Entry(int id, int answers[]) {
+                this.id = id;
+                this.answers = answers;
+            }
+
+            ByteBuffer record() {
+                ByteBuffer b = ByteBuffer.allocate(8 + 16 + 4 * answers.length);
+                b.position(8);
+                b.putLong(seq).putInt(id).putInt(answers.length);
+                for (int a : answers) {
+                    b.putInt(a);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(b.array(), 8, b.capacity() - 8);
+                b.putInt(0, b.capacity() - 8);
+                b.putInt(4, (int) crc.getValue());
+                b.rewind();
+                return b;
+            }
+
+            /**
+             * Next whole record of b, or null
+             *
+             * @param b
+             * @return
+             */
+            static Entry read(ByteBuffer b) {
+                if (b.remaining() < 8 + 16) {
+                    return null;
+                }
+                int start = b.position();
+                int length = b.getInt(start);
+                if (length < 16 || (length - 16) % 4 != 0 || b.remaining() < 8 + length) {
+                    return null;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(b.array(), start + 8, length);
+                if ((int) crc.getValue() != b.getInt(start + 4)) {
+                    return null;
+                }
+                b.position(start + 8);
+                long seq = b.getLong();
+                Entry e = new Entry(b.getInt(), new int[b.getInt()]);
+                e.seq = seq;
+                for (int i = 0; i < e.answers.length; i++) {
+                    e.answers[i] = b.getInt();
+                }
+                return e;
+            }
+        }
+    }
+
+    /**
+     * All answers of one student, packed into as few queue elements as the
+     * node size limit allows. Each element holds one chunk: a version byte,
+     * then student id, chunk index, chunk count and answer count, then a
+     * (question index, value) pair per answer, all as varints.
+     */
+    static class Submission {
+        static final int VERSION = 1;
+        // Largest encoding of a chunk header and of one answer
+        static final int MAX_HEADER = 1 + 4 * 5;
+        static final int MAX_ANSWER = 2 * 5;
+
+        int id;
+        int chunk;
+        int chunks;
+        int questions[];
+        int values[];
+        // Queue elements holding the chunks, when known
+        String paths[] = new String[0];
+
+        Submission(int id, int chunk, int chunks, int questions[], int values[]) {
+            this.id = id;
+            this.chunk = chunk;
+            this.chunks = chunks;
+            this.questions = questions;
+            this.values = values;
+        }
+
+        /**
+         * Encode the answers of a student, answers[i] being the answer to
+         * question i, in chunks of at most maxChunk bytes
+         *
+         * @param id
+         * @param answers
+         * @param maxChunk
+         * @return
+         */
+        static List<byte[]> encode(int id, int answers[], int maxChunk) {
+            int perChunk = Math.max(1, (maxChunk - MAX_HEADER) / MAX_ANSWER);
+            int chunks = Math.max(1, (answers.length + perChunk - 1) / perChunk);
+            List<byte[]> ret = new ArrayList<byte[]>(chunks);
+            for (int c = 0; c < chunks; c++) {
+                int from = c * perChunk;
+                int to = Math.min(answers.length, from + perChunk);
+                ByteArrayOutputStream b = new ByteArrayOutputStream(MAX_HEADER + (to - from) * MAX_ANSWER);
+                b.write(VERSION);
+                writeVarint(b, id);
+                writeVarint(b, c);
+                writeVarint(b, chunks);
+                writeVarint(b, to - from);
+                for (int q = from; q < to; q++) {
+                    writeVarint(b, q);
+                    writeVarint(b, (answers[q] << 1) ^ (answers[q] >> 31));
+                }
+                ret.add(b.toByteArray());
+            }
+            return ret;
+        }
+
+        /**
+         * Decode one chunk
+         *
+         * @param b
+         * @return
+         */
+        static Submission decode(byte b[]) {
+            if (b.length == 0 || b[0] != VERSION) {
+                throw new IllegalArgumentException("Unknown submission version");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, 1, b.length - 1);
+            try {
+                int id = readVarint(buffer);
+                int chunk = readVarint(buffer);
+                int chunks = readVarint(buffer);
+                int count = readVarint(buffer);
+                if (chunk < 0 || chunk >= chunks || count < 0 || count > buffer.remaining()) {
+                    throw new IllegalArgumentException("Corrupt submission header");
+                }
+                int questions[] = new int[count];
+                int values[] = new int[count];
+                for (int i = 0; i < count; i++) {
+                    questions[i] = readVarint(buffer);
+                    int v = readVarint(buffer);
+                    values[i] = (v >>> 1) ^ -(v & 1);
+                }
+                return new Submission(id, chunk, chunks, questions, values);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated submission");
+            }
+        }
+
+        /**
+         * Join the chunks of a submission, or null while some are missing
+         *
+         * @param parts
+         * @return
+         */
+        static Submission merge(Submission parts[]) {
+            int count = 0;
+            for (Submission p : parts) {
+                if (p == null) {
+                    return null;
+                }
+                count += p.questions.length;
+            }
+            int questions[] = new int[count];
+            int values[] = new int[count];
+            List<String> paths = new ArrayList<String>(parts.length);
+            int at = 0;
+            for (Submission p : parts) {
+                System.arraycopy(p.questions, 0, questions, at, p.questions.length);
+                System.arraycopy(p.values, 0, values, at, p.values.length);
+                at += p.questions.length;
+                paths.addAll(Arrays.asList(p.paths));
+            }
+            Submission whole = new Submission(parts[0].id, 0, 1, questions, values);
+            whole.paths = paths.toArray(new String[paths.size()]);
+            return whole;
+        }
+
+        static void writeVarint(ByteArrayOutputStream b, int v) {
+            while ((v & ~0x7F) != 0) {
+                b.write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            b.write(v);
+        }
+
+        static int readVarint(ByteBuffer b) {
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte next = b.get();
+                v |= (next & 0x7F) << shift;
+                if ((next & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IllegalArgumentException("Varint too long");
+        }
+    }
+
+    /**
+     * Joins submission chunks back together, per student
+     */
+    static class Reassembler {
+        HashMap<Integer, Submission[]> partial = new HashMap<Integer, Submission[]>();
+
+        /**
+         * Add one queue element
+         *
+         * @param element
+         * @return the whole submission it completes, or null
+         */
+        Submission add(byte element[]) {
+            return add(element, null);
+        }
+
+        /**
+         * Add one queue element, remembering where it was read from
+         *
+         * @param element
+         * @param path
+         * @return the whole submission it completes, or null
+         */
+        Submission add(byte element[], String path) {
+            Submission chunk;
+            try {
+                chunk = Submission.decode(element);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Skipping element: " + e.getMessage());
+                return null;
+            }
+            if (path != null) {
+                chunk.paths = new String[] {path};
+            }
+            if (chunk.chunks == 1) {
+                return chunk;
+            }
+            Submission parts[] = partial.get(chunk.id);
+            if (parts == null) {
+                parts = new Submission[chunk.chunks];
+                partial.put(chunk.id, parts);
+            }
+            parts[chunk.chunk] = chunk;
+            Submission whole = Submission.merge(parts);
+            if (whole != null) {
+                partial.remove(chunk.id);
+            }
+            return whole;
+        }
+
+        boolean isEmpty() {
+            return partial.isEmpty();
+        }
+
+        void clear() {
+            partial.clear();
+        }
+
+        int size() {
+            return partial.size();
+        }
+    }
+
+    static public class Lock extends SyncPrimitive {
+        String pathName;
+        long wait;
+        int id;
+        int answers[];
+        Queue q;
+        // Hands the answers in asynchronously when set
+        Outbox outbox;
+        // Completed from process() once this lock is held
+        CompletableFuture<Boolean> acquired = new CompletableFuture<Boolean>();
+        // Contenders for the lock, loaded once and then kept up to date
+        SequentialIndex index;
+        // When the lock was requested, to time the wait
+        long requested;
+        // Nested holds of this instance, released by as many unlock()
+        int holds = 0;
+
+        /**
+        * Constructor of lock
+        *
+        * @param address
+        * @param name Name of the lock node
+        */
+        Lock(String address, String name, long waitTime, int id, int answers[], Queue q) {
+            super(address);
+            this.root = name;
+            this.wait = waitTime;
+            this.id = id;
+            this.answers = answers;
+            this.q = q;
+            // Create ZK node name
+            if (zk != null) {
+                try {
+                    ensure(root);
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating queue: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+        
+        boolean lock() throws KeeperException, InterruptedException{
+            //Step 1
+            requested = System.nanoTime();
+            pathName = create(root + "/lock-", new byte[0], CreateMode.EPHEMERAL_SEQUENTIAL);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("My path name is: " + pathName);
+            }
+            if (index != null) {
+                index.add(sequence(pathName));
+            }
+            //Steps 2 to 5
+            return testMin();
+        }
+
+        /**
+         * Request the lock without blocking. The future completes with true
+         * as soon as the lock is held, including from the watch on the
+         * predecessor node.
+         *
+         * @return
+         */
+        synchronized CompletableFuture<Boolean> lockAsync() {
+            if (pathName != null) {
+                // Already requested or held by this instance
+                return acquired;
+            }
+            try {
+                if (lock()) {
+                    metrics.record("lockWait", requested);
+                    acquired.complete(true);
+                }
+            } catch (KeeperException e) {
+                acquired.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                acquired.completeExceptionally(e);
+            }
+            return acquired;
+        }
+
+        /**
+         * Request the lock and park until it is held or the timeout elapses.
+         * On timeout the request is withdrawn. A lock already held by this
+         * instance is taken again at once, and must be unlocked as many
+         * times as it was taken.
+         *
+         * @param timeout
+         * @param unit
+         * @return true if the lock is held
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean lock(long timeout, TimeUnit unit) throws KeeperException, InterruptedException{
+            synchronized (this) {
+                if (holds > 0) {
+                    holds++;
+                    return true;
+                }
+            }
+            if (await(lockAsync(), timeout, unit)) {
+                synchronized (this) {
+                    holds++;
+                }
+                return true;
+            }
+            unlock();
+            return false;
+        }
+
+        /**
+         * Request the lock and wait for it at most the wait time given to
+         * the constructor
+         *
+         * @return true if the lock is held
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean tryLock() throws KeeperException, InterruptedException{
+            return lock(wait, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Release one hold of the lock, or withdraw a pending request. The
+         * last release deletes the lock node, which hands the lock to the
+         * next waiter right away, and leaves this instance ready to lock
+         * again.
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        synchronized void unlock() throws KeeperException, InterruptedException{
+            if (holds > 1) {
+                holds--;
+                return;
+            }
+            holds = 0;
+            if (pathName != null) {
+                try {
+                    delete(pathName, -1);
+                } catch (KeeperException.NoNodeException e) {
+                    // Gone with its session
+                }
+                pathName = null;
+            }
+            // Only kept up to date while waiting
+            index = null;
+            acquired = new CompletableFuture<Boolean>();
+        }
+        
+        synchronized void recover(Session session) throws KeeperException, InterruptedException{
+            if (acquired.isDone() && pathName != null) {
+                // Others may hold it by now, not queued again
+                System.out.println("Lock " + pathName + " lost with the expired session");
+                ephemerals.remove(pathName);
+            }
+            super.recover(session);
+        }
+
+        /**
+         * A waiting request was queued again, at the end of the line
+         */
+        synchronized void renamed(String from, String to) throws KeeperException, InterruptedException{
+            if (!from.equals(pathName) || acquired.isDone()) {
+                return;
+            }
+            synchronized (mutex) {
+                pathName = to;
+                index = null;
+                if (testMin()) {
+                    metrics.record("lockWait", requested);
+                    acquired.complete(true);
+                }
+            }
+        }
+
+        boolean testMin() throws KeeperException, InterruptedException{
+            long suffix = sequence(pathName);
+            //Step 2
+            if (index == null) {
+                index = new SequentialIndex("lock-");
+                index.load(getChildren(root, false));
+            }
+            while (true) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Suffix: " + suffix + ", min: " + index.min());
+                }
+                //Step 3
+                if (index.isMin(suffix)) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Lock acquired for " + pathName + "!");
+                    }
+                    return true;
+                }
+                //Step 4
+                //Wait for the removal of the next lowest sequence number
+                long previous = index.predecessor(suffix);
+                String previousPath = root + "/" + index.name(previous);
+                //Exists with watch
+                Stat s = exists(previousPath, this);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Watching " + previousPath);
+                }
+                //Step 5
+                if (s != null) {
+                    //Wait for notification
+                    break;
+                }
+                //Already gone. The ones below it most likely went first,
+                //so list them again instead of checking them one by one
+                index.load(getChildren(root, false));
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(pathName + " is waiting for a notification!");
+            }
+            return false;
+        }
+
+        synchronized public void process(WatchedEvent event) {
+            watched(event);
+            if (pathName == null || acquired.isDone()) {
+                return;
+            }
+            synchronized (mutex) {
+                String path = event.getPath();
+                if (event.getType() == Event.EventType.NodeDeleted) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Notification from " + path);
+                    }
+                    index.remove(sequence(path));
+                    try {
+                        if (testMin()) { //Step 5 (cont.) -> go to step 2 to check
+                            metrics.record("lockWait", requested);
+                            acquired.complete(true);
+                        } else if (LOG.isDebugEnabled()) {
+                            LOG.debug("Not lowest sequence number! Waiting for a new notification.");
+                        }
+                    } catch (Exception e) {
+                        acquired.completeExceptionally(e);
+                    }
+                }
+            }
+        }
+        
+        void compute() {
+            try {
+                System.out.println("I'm returning my essay, I'm student " + id + " (At lock)");
+                if (outbox != null) {
+                    outbox.submit(id, this.answers);
+                } else {
+                    this.q.produceSubmission(id, this.answers);
+                }
+                System.out.println("Waiting for my score (Leaving lock)");
+            } catch (KeeperException e){
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Counting semaphore: up to permits participants hold it at once.
+     * Contenders create ephemeral sequential nodes and the permits lowest
+     * ones hold it. Only the first waiter watches the holders, since any
+     * release admits it; every later waiter watches the waiter right
+     * before it, which on admission touches its node to wake it up. A
+     * release thus wakes one or two participants, never the whole line.
+     */
+    static public class Semaphore extends SyncPrimitive {
+        static final String PREFIX = "permit-";
+
+        int permits;
+        String pathName;
+        // Completed from process() once a permit is held
+        CompletableFuture<Boolean> acquired = new CompletableFuture<Boolean>();
+        // Whether this participant had to wait, so its successor may be
+        // watching for its admission
+        boolean waited;
+        // When the permit was requested, to time the wait
+        long requested;
+
+        /**
+         * Constructor of semaphore
+         *
+         * @param address
+         * @param name Name of the semaphore node
+         * @param permits Participants allowed to hold it at once
+         */
+        Semaphore(String address, String name, int permits) {
+            super(address);
+            this.root = name;
+            this.permits = Math.max(1, permits);
+            if (zk != null) {
+                try {
+                    ensure(root);
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating semaphore: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+
+        boolean acquire() throws KeeperException, InterruptedException{
+            requested = System.nanoTime();
+            waited = false;
+            pathName = create(root + "/" + PREFIX, new byte[0], CreateMode.EPHEMERAL_SEQUENTIAL);
+            return test();
+        }
+
+        /**
+         * Request a permit without blocking. The future completes with true
+         * as soon as a permit is held, including from a watch.
+         *
+         * @return
+         */
+        synchronized CompletableFuture<Boolean> acquireAsync() {
+            try {
+                if (acquire()) {
+                    admitted();
+                }
+            } catch (KeeperException e) {
+                acquired.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                acquired.completeExceptionally(e);
+            }
+            return acquired;
+        }
+
+        /**
+         * Request a permit and park until it is held or the timeout
+         * elapses. On timeout the request is withdrawn.
+         *
+         * @param timeout
+         * @param unit
+         * @return true if a permit is held
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean acquire(long timeout, TimeUnit unit) throws KeeperException, InterruptedException{
+            if (await(acquireAsync(), timeout, unit)) {
+                return true;
+            }
+            release();
+            return false;
+        }
+
+        /**
+         * Give the permit back, or withdraw a pending request, so the
+         * semaphore can be acquired again
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        synchronized void release() throws KeeperException, InterruptedException{
+            if (pathName != null) {
+                try {
+                    delete(pathName, -1);
+                } catch (KeeperException.NoNodeException e) {
+                    // Gone with its session
+                }
+                pathName = null;
+            }
+            acquired = new CompletableFuture<Boolean>();
+        }
+
+        /**
+         * Check whether this participant holds a permit, and if not watch
+         * the nodes whose change can admit it
+         *
+         * @return true if a permit is held
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean test() throws KeeperException, InterruptedException{
+            String me = pathName.substring(root.length() + 1);
+            while (true) {
+                List<String> list = getChildren(root, false);
+                for (int i = list.size() - 1; i >= 0; i--) {
+                    if (!list.get(i).startsWith(PREFIX)) {
+                        list.remove(i);
+                    }
+                }
+                Collections.sort(list, SEQUENCE_ORDER);
+                int rank = list.indexOf(me);
+                if (rank < 0) {
+                    throw KeeperException.create(KeeperException.Code.NONODE, pathName);
+                }
+                if (rank < permits) {
+                    return true;
+                }
+                waited = true;
+                boolean moved = false;
+                if (rank == permits) {
+                    // First waiter: the release of any holder admits it
+                    for (String holder : list.subList(0, permits)) {
+                        moved |= exists(root + "/" + holder, this) == null;
+                    }
+                } else {
+                    // Admitted predecessors touch their node, version 1
+                    Stat s = exists(root + "/" + list.get(rank - 1), this);
+                    moved = s == null || s.getVersion() > 0;
+                }
+                if (!moved) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Record the admission, and if this participant waited, wake up
+         * the waiter watching it
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        synchronized void recover(Session session) throws KeeperException, InterruptedException{
+            if (acquired.isDone() && pathName != null) {
+                // Released by the expiry, not queued again
+                System.out.println("Permit " + pathName + " lost with the expired session");
+                ephemerals.remove(pathName);
+            }
+            super.recover(session);
+        }
+
+        synchronized void renamed(String from, String to) throws KeeperException, InterruptedException{
+            if (!from.equals(pathName) || acquired.isDone()) {
+                return;
+            }
+            pathName = to;
+            waited = false;
+            if (test()) {
+                admitted();
+            }
+        }
+
+        void admitted() throws KeeperException, InterruptedException{
+            metrics.record("acquireWait", requested);
+            if (waited) {
+                setData(pathName, new byte[0], -1);
+            }
+            acquired.complete(true);
+        }
+
+        synchronized public void process(WatchedEvent event) {
+            watched(event);
+            if (pathName == null || acquired.isDone()) {
+                return;
+            }
+            if (event.getType() == Event.EventType.NodeDeleted
+                    || event.getType() == Event.EventType.NodeDataChanged) {
+                try {
+                    if (test()) {
+                        admitted();
+                    }
+                } catch (Exception e) {
+                    acquired.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Named counters split into stripes, so concurrent increments mostly
+     * update different znodes instead of all retrying on one version. The
+     * stripes of counter name are root/name/stripe-k, each holding an 8
+     * byte value. An increment is a versioned setData of a random stripe,
+     * moved to another random stripe after a conflict. Reads add up the
+     * stripes from a local cache, each entry dropped by a data watch as
+     * soon as its stripe changes.
+     */
+    static public class Counter extends SyncPrimitive {
+        static final String PREFIX = "stripe-";
+
+        int stripes;
+        // Value and version of the stripes read, until their watch fires
+        ConcurrentHashMap<String, long[]> cache = new ConcurrentHashMap<String, long[]>();
+        // Bumped by every invalidation, to spot one racing with a read
+        AtomicLong invalidations = new AtomicLong();
+
+        /**
+         * Constructor of counter
+         *
+         * @param address
+         * @param name Root of the counters
+         * @param stripes Stripes per counter
+         */
+        Counter(String address, String name, int stripes) {
+            super(address);
+            this.root = name;
+            this.stripes = Math.max(1, stripes);
+            if (zk != null) {
+                try {
+                    ensure(root);
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating counter: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+
+        /**
+         * Create the stripes of counters that do not have them yet, in a
+         * single transaction
+         *
+         * @param names
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void define(String... names) throws KeeperException, InterruptedException{
+            String paths[] = new String[names.length * stripes];
+            for (int i = 0; i < names.length; i++) {
+                for (int k = 0; k < stripes; k++) {
+                    paths[i * stripes + k] = stripe(names[i], k);
+                }
+            }
+            ensure(paths);
+        }
+
+        String stripe(String name, int k) {
+            return root + "/" + name + "/" + PREFIX + k;
+        }
+
+        String stripe(String name) {
+            return stripe(name, ThreadLocalRandom.current().nextInt(stripes));
+        }
+
+        /**
+         * Value and version of a stripe, read and watched unless cached
+         *
+         * @param path
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        long[] read(String path) throws KeeperException, InterruptedException{
+            long cached[] = cache.get(path);
+            if (cached == null) {
+                long seen = invalidations.get();
+                Stat stat = new Stat();
+                byte b[] = getData(path, this, stat);
+                cached = new long[] {b.length < 8 ? 0 : ByteBuffer.wrap(b).getLong(), stat.getVersion()};
+                cache.put(path, cached);
+                if (invalidations.get() != seen) {
+                    // Possibly changed after the read, read it again next time
+                    cache.remove(path);
+                }
+            }
+            return cached;
+        }
+
+        /**
+         * Add delta to a counter
+         *
+         * @param name
+         * @param delta
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void add(String name, long delta) throws KeeperException, InterruptedException{
+            define(name);
+            while (true) {
+                String path = stripe(name);
+                long s[] = read(path);
+                try {
+                    setData(path, ByteBuffer.allocate(8).putLong(s[0] + delta).array(), (int) s[1]);
+                    return;
+                } catch (KeeperException.BadVersionException e) {
+                    // Raced with another increment, try another stripe
+                    cache.remove(path);
+                    metrics.count("conflict");
+                }
+            }
+        }
+
+        /**
+         * Add to several counters at once, in one transaction
+         *
+         * @param deltas Amount to add, by counter name
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void add(Map<String, Long> deltas) throws KeeperException, InterruptedException{
+            define(deltas.keySet().toArray(new String[deltas.size()]));
+            while (true) {
+                List<Op> ops = new ArrayList<Op>();
+                List<String> paths = new ArrayList<String>();
+                for (Map.Entry<String, Long> e : deltas.entrySet()) {
+                    String path = stripe(e.getKey());
+                    long s[] = read(path);
+                    ops.add(Op.setData(path, ByteBuffer.allocate(8).putLong(s[0] + e.getValue()).array(), (int) s[1]));
+                    paths.add(path);
+                }
+                try {
+                    multi(ops);
+                    return;
+                } catch (KeeperException.BadVersionException e) {
+                    // Only the stripe that conflicted is known to be stale
+                    List<OpResult> results = e.getResults();
+                    if (results == null) {
+                        cache.keySet().removeAll(paths);
+                    }
+                    for (int i = 0; results != null && i < results.size(); i++) {
+                        if (results.get(i) instanceof OpResult.ErrorResult
+                                && ((OpResult.ErrorResult) results.get(i)).getErr()
+                                == KeeperException.Code.BADVERSION.intValue()) {
+                            cache.remove(paths.get(i));
+                        }
+                    }
+                    metrics.count("conflict");
+                }
+            }
+        }
+
+        /**
+         * Current value of a counter
+         *
+         * @param name
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        long get(String name) throws KeeperException, InterruptedException{
+            define(name);
+            long sum = 0;
+            for (int k = 0; k < stripes; k++) {
+                sum += read(stripe(name, k))[0];
+            }
+            return sum;
+        }
+
+        void recover(Session session) throws KeeperException, InterruptedException{
+            // The watches went with the session
+            cache.clear();
+            invalidations.incrementAndGet();
+            super.recover(session);
+        }
+
+        public void process(WatchedEvent event) {
+            watched(event);
+            if (event.getType() != Event.EventType.None) {
+                invalidations.incrementAndGet();
+                cache.remove(event.getPath());
+            }
+        }
+    }
+
+    /**
+     * Grades submissions in three stages: a fetcher keeps up to window
+     * element claims in flight, the ZooKeeper event thread reassembles the
+     * claimed elements, and a pool of workers grades whole submissions
+     * into per-student scores keyed on question index.
+     */
+    static class GradingPipeline {
+        Queue q;
+        int answers[];
+        int expected;
+        int window;
+        ExecutorService workers;
+        ConcurrentHashMap<Integer, Score> scores = new ConcurrentHashMap<Integer, Score>();
+        // Where grades are appended as they are made, if set
+        Results results;
+        // Live aggregate scores, if set
+        Counter counters;
+        // Counts down once per student graded
+        CountDownLatch graded;
+        volatile KeeperException failure;
+
+        // Guarded by this
+        Reassembler partial = new Reassembler();
+        int inFlight = 0;
+        // Students with a whole submission, counted once however many
+        // times they were handed in or delivered
+        Set<Integer> completed = new HashSet<Integer>();
+
+        GradingPipeline(Queue q, int answers[], int expected, int window, int workers) {
+            this(q, answers, expected, window, workers, new HashMap<Integer, Score>());
+        }
+
+        /**
+         * Pipeline resuming with the scores of students already graded
+         *
+         * @param q
+         * @param answers
+         * @param expected Students to grade, including the ones already graded
+         * @param window
+         * @param workers
+         * @param done Scores of the students already graded
+         */
+        GradingPipeline(Queue q, int answers[], int expected, int window, int workers, Map<Integer, Score> done) {
+            this.q = q;
+            this.answers = answers;
+            this.expected = expected;
+            this.window = window;
+            this.workers = Executors.newFixedThreadPool(workers);
+            this.scores.putAll(done);
+            this.completed.addAll(done.keySet());
+            this.graded = new CountDownLatch(Math.max(0, expected - done.size()));
+        }
+
+        /**
+         * Grade expected submissions
+         *
+         * @return scores per student
+         * @throws KeeperException if grading had to stop
+         * @throws InterruptedException
+         */
+        Map<Integer, Score> run() throws KeeperException, InterruptedException {
+            Thread fetcher = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        fetch();
+                    } catch (InterruptedException e) {
+                        // Done grading
+                    } catch (KeeperException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, "grading-fetcher");
+            fetcher.start();
+            graded.await();
+            fetcher.interrupt();
+            workers.shutdown();
+            if (failure != null) {
+                throw failure;
+            }
+            return scores;
+        }
+
+        /**
+         * Stop grading, making run() throw e
+         *
+         * @param e
+         */
+        void fail(KeeperException e) {
+            failure = e;
+            while (graded.getCount() > 0) {
+                graded.countDown();
+            }
+        }
+
+        /**
+         * Start claiming one element
+         *
+         * @param path
+         * @param f
+         */
+        void take(String path, Queue.Fetch f) {
+            q.claimAsync(path, f);
+        }
+
+        /**
+         * Called once the grades of s are recorded
+         *
+         * @param s
+         */
+        void graded(Submission s) {
+        }
+
+        /**
+         * Called when an element could not be claimed and will be listed
+         * and tried again
+         *
+         * @param path
+         */
+        void dropped(String path) {
+        }
+
+        void fetch() throws KeeperException, InterruptedException {
+            while (true) {
+                int n;
+                synchronized (this) {
+                    while ((n = allowance()) == 0) {
+                        wait();
+                    }
+                    inFlight += n;
+                }
+                String names[] = q.heads(n);
+                synchronized (this) {
+                    inFlight -= n - names.length;
+                }
+                for (String name : names) {
+                    take(name, new Queue.Fetch() {
+                        void claimed(byte data[]) {
+                            Submission whole;
+                            synchronized (GradingPipeline.this) {
+                                whole = partial.add(data, path);
+                                if (whole != null) {
+                                    completed.add(whole.id);
+                                }
+                                inFlight--;
+                                GradingPipeline.this.notifyAll();
+                            }
+                            if (whole != null) {
+                                grade(whole);
+                            }
+                        }
+
+                        void lost(int rc) {
+                            if (rc != KeeperException.Code.NONODE.intValue()) {
+                                dropped(path);
+                                q.invalidate();
+                            }
+                            synchronized (GradingPipeline.this) {
+                                inFlight--;
+                                GradingPipeline.this.notifyAll();
+                            }
+                        }
+                    });
+                }
+            }
+        }
+
+        /**
+         * Claims that may start now. Every submission still expected takes
+         * at least one element, so beyond chunks of partial submissions
+         * nothing is claimed that could belong to a submission past the
+         * expected ones, which stays in the queue.
+         */
+        int allowance() {
+            int free = window - inFlight;
+            if (partial.isEmpty()) {
+                free = Math.min(free, expected - completed.size() - inFlight);
+            }
+            return Math.max(0, free);
+        }
+
+        void grade(final Submission s) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    Score score = scores.get(s.id);
+                    boolean first = false;
+                    if (score == null) {
+                        first = scores.putIfAbsent(s.id, new Score(answers.length)) == null;
+                        score = scores.get(s.id);
+                    }
+                    score.grade(s, answers);
+                    if (results != null) {
+                        try {
+                            results.append(s, answers);
+                        } catch (IOException e) {
+                            System.out.println("Could not store results: " + e.toString());
+                        }
+                    }
+                    if (counters != null) {
+                        try {
+                            counters.add(Score.tally(s, answers));
+                        } catch (KeeperException e) {
+                            System.out.println("Could not count scores: " + e.toString());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    graded(s);
+                    if (first) {
+                        graded.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Grading pipeline that never loses a claimed element: elements are
+     * only read, and deleted once their grades are in a checkpoint the
+     * leader writes every INTERVAL ms. Grading the same submission twice
+     * records the same grades, so elements left behind by a crash between
+     * a checkpoint and their deletion are harmless.
+     */
+    static class CheckpointedPipeline extends GradingPipeline {
+        static final long INTERVAL = Long.getLong("grading.checkpoint", 1000);
+
+        Leader leader;
+        CountDownLatch finished = new CountDownLatch(1);
+
+        // Guarded by this: elements read and not deleted yet, the graded
+        // ones among them, and the highest sequence read per shard
+        HashSet<String> taken = new HashSet<String>();
+        ArrayList<String> done = new ArrayList<String>();
+        long watermarks[];
+
+        CheckpointedPipeline(Leader leader, Checkpoint from, int window, int workers) {
+            super(leader.q, leader.answers, leader.number_students, window, workers, from.scores);
+            this.leader = leader;
+            this.watermarks = from.watermarks.clone();
+        }
+
+        Map<Integer, Score> run() throws KeeperException, InterruptedException {
+            Thread checkpointer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!finished.await(INTERVAL, TimeUnit.MILLISECONDS)) {
+                            checkpoint();
+                        }
+                    } catch (InterruptedException e) {
+                        // Done grading
+                    } catch (KeeperException e) {
+                        fail(e);
+                    }
+                }
+            }, "grading-checkpoint");
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+            try {
+                super.run();
+            } finally {
+                finished.countDown();
+                checkpointer.join();
+            }
+            checkpoint();
+            return scores;
+        }
+
+        void take(String path, Queue.Fetch f) {
+            boolean fresh;
+            synchronized (this) {
+                fresh = taken.add(path);
+                if (fresh) {
+                    int k = q.shardOf(path);
+                    watermarks[k] = Math.max(watermarks[k], sequence(path));
+                }
+            }
+            if (fresh) {
+                q.readAsync(path, f);
+            } else {
+                // Listed again before its deletion, already being graded
+                f.lost(KeeperException.Code.NONODE.intValue());
+            }
+        }
+
+        void graded(Submission s) {
+            synchronized (this) {
+                done.addAll(Arrays.asList(s.paths));
+            }
+        }
+
+        synchronized void dropped(String path) {
+            taken.remove(path);
+        }
+
+        /**
+         * Save the scores so far, then delete the elements they cover
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void checkpoint() throws KeeperException, InterruptedException {
+            HashSet<String> covered;
+            Checkpoint c = new Checkpoint(watermarks.length);
+            synchronized (this) {
+                covered = new HashSet<String>(done);
+                done.clear();
+                // Everything at or below the watermark is graded
+                System.arraycopy(watermarks, 0, c.watermarks, 0, watermarks.length);
+                for (String path : taken) {
+                    if (!covered.contains(path)) {
+                        int k = q.shardOf(path);
+                        c.watermarks[k] = Math.min(c.watermarks[k], sequence(path) - 1);
+                    }
+                }
+            }
+            c.scores.putAll(scores);
+            leader.save(c);
+
+            final CountDownLatch deleted = new CountDownLatch(covered.size());
+            for (String path : covered) {
+                q.delete(path, -1, new AsyncCallback.VoidCallback() {
+                    public void processResult(int rc, String path, Object ctx) {
+                        deleted.countDown();
+                    }
+                }, null);
+            }
+            deleted.await();
+            synchronized (this) {
+                taken.removeAll(covered);
+            }
+        }
+    }
+
+    /**
+     * Grading progress saved by the leader: per queue shard the sequence
+     * watermark at or below which every element is graded, and the scores
+     * of the students graded so far. Stored as a version byte, the shard
+     * count and watermarks + 1, then the student count and for each one
+     * its id, score length and score, as varints.
+     */
+    static class Checkpoint {
+        static final byte VERSION = 1;
+
+        long watermarks[];
+        Map<Integer, Score> scores = new HashMap<Integer, Score>();
+
+        Checkpoint(int shards) {
+            watermarks = new long[shards];
+            Arrays.fill(watermarks, -1);
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            b.write(VERSION);
+            Submission.writeVarint(b, watermarks.length);
+            for (long w : watermarks) {
+                Submission.writeVarint(b, (int) (w + 1));
+            }
+            Submission.writeVarint(b, scores.size());
+            for (Map.Entry<Integer, Score> e : scores.entrySet()) {
+                byte s[] = e.getValue().encode();
+                Submission.writeVarint(b, e.getKey());
+                Submission.writeVarint(b, s.length);
+                b.write(s, 0, s.length);
+            }
+            return b.toByteArray();
+        }
+
+        static Checkpoint decode(byte b[]) {
+            if (b.length == 0 || b[0] != VERSION) {
+                throw new IllegalArgumentException("Unknown checkpoint version");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, 1, b.length - 1);
+            try {
+                Checkpoint c = new Checkpoint(Submission.readVarint(buffer));
+                for (int k = 0; k < c.watermarks.length; k++) {
+                    c.watermarks[k] = Submission.readVarint(buffer) - 1L;
+                }
+                int count = Submission.readVarint(buffer);
+                for (int i = 0; i < count; i++) {
+                    int id = Submission.readVarint(buffer);
+                    byte s[] = new byte[Submission.readVarint(buffer)];
+                    buffer.get(s);
+                    c.scores.put(id, Score.decode(s));
+                }
+                return c;
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Truncated checkpoint");
+            }
+        }
+    }
+
+    /**
+     * Grades of one student, by question index
+     */
+    static class Score {
+        BitSet answered;
+        BitSet correct;
+
+        Score(int questions) {
+            answered = new BitSet(questions);
+            correct = new BitSet(questions);
+        }
+
+        synchronized void record(int question, boolean right) {
+            if (question < 0) {
+                return;
+            }
+            answered.set(question);
+            correct.set(question, right);
+        }
+
+        synchronized int correct() {
+            return correct.cardinality();
+        }
+
+        /**
+         * Record every answer of s against the answer key
+         *
+         * @param s
+         * @param answers
+         */
+        void grade(Submission s, int answers[]) {
+            for (int k = 0; k < s.questions.length; k++) {
+                record(s.questions[k], right(s.questions[k], s.values[k], answers));
+            }
+        }
+
+        /**
+         * Whether value is the right answer to question j
+         *
+         * @param j
+         * @param value
+         * @param answers
+         * @return
+         */
+        static boolean right(int j, int value, int answers[]) {
+            return j >= 0 && j < answers.length && answers[j] == value;
+        }
+
+        /**
+         * Increments of the score counters for s: answers and right
+         * answers per question, and for the whole class
+         *
+         * @param s
+         * @param answers
+         * @return amount to add, by counter name
+         */
+        static Map<String, Long> tally(Submission s, int answers[]) {
+            Map<String, Long> deltas = new HashMap<String, Long>();
+            long correct = 0;
+            for (int k = 0; k < s.questions.length; k++) {
+                int j = s.questions[k];
+                if (j < 0) {
+                    continue;
+                }
+                long right = right(j, s.values[k], answers) ? 1 : 0;
+                deltas.put("q" + (j + 1) + ".answered", 1L);
+                deltas.put("q" + (j + 1) + ".correct", right);
+                correct += right;
+            }
+            deltas.put("class.answered", (long) deltas.size() / 2);
+            deltas.put("class.correct", correct);
+            return deltas;
+        }
+
+        /**
+         * Print one line per answered question and the total
+         *
+         * @param id
+         * @param questions
+         */
+        synchronized void report(int id, int questions) {
+            for (int j = answered.nextSetBit(0); j >= 0; j = answered.nextSetBit(j + 1)) {
+                System.out.println("Student: " + id + " | Question: " + (j+1) + " | Solution: "
+                        + (correct.get(j) ? "Correct" : "Incorrect"));
+            }
+            System.out.println("Student: " + id + " | Score: " + correct() + "/" + questions);
+        }
+
+        synchronized byte[] encode() {
+            byte a[] = answered.toByteArray();
+            byte c[] = correct.toByteArray();
+            ByteBuffer b = ByteBuffer.allocate(8 + a.length + c.length);
+            b.putInt(a.length).put(a).putInt(c.length).put(c);
+            return b.array();
+        }
+
+        static Score decode(byte b[]) {
+            ByteBuffer buffer = ByteBuffer.wrap(b);
+            byte a[] = new byte[buffer.getInt()];
+            buffer.get(a);
+            byte c[] = new byte[buffer.getInt()];
+            buffer.get(c);
+            Score score = new Score(0);
+            score.answered = BitSet.valueOf(a);
+            score.correct = BitSet.valueOf(c);
+            return score;
+        }
+    }
+
+    /**
+     * Append-only store of graded answers in a memory-mapped file. Every
+     * record is RECORD bytes: student id, question index, a correct flag,
+     * the time it was graded and a CRC32 of all that, written last. The
+     * first record slot holds the header. The file grows and is mapped a
+     * chunk of CHUNK records at a time, so appending is a few stores into
+     * memory.
+     *
+     * Opening the file keeps the records up to the first one whose CRC
+     * does not match, which is where a crash left it, and clears the rest.
+     * A store opened with follow() maps the file read-only and picks up
+     * records as another process appends them, so reports can run while
+     * grading goes on.
+     */
+    static class Results {
+        static final int MAGIC = 0x52534c54;
+        static final int VERSION = 1;
+        static final int RECORD = 24;
+        // Records per mapped chunk of new files
+        static final int CHUNK = Integer.getInteger("results.chunk", 1 << 16);
+
+        File file;
+        boolean writable;
+        FileChannel channel;
+        // Bytes per mapped chunk, kept in the header
+        int chunkSize;
+        ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+        // Offset of the next record. Records before it are complete.
+        volatile long end = RECORD;
+        // Scores of every student with a record, by student id
+        ConcurrentHashMap<Integer, Score> index = new ConcurrentHashMap<Integer, Score>();
+        CRC32 crc = new CRC32();
+        ByteBuffer scratch = ByteBuffer.allocate(RECORD - 4);
+
+        Results(File file, boolean writable) throws IOException {
+            this.file = file;
+            this.writable = writable;
+            this.channel = new RandomAccessFile(file, writable ? "rw" : "r").getChannel();
+        }
+
+        /**
+         * Open or create a store to append to, recovering it after a crash
+         *
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        static Results open(File file) throws IOException {
+            Results r = new Results(file, true);
+            if (r.channel.size() == 0) {
+                r.chunkSize = RECORD * CHUNK;
+                MappedByteBuffer first = r.chunk(0);
+                first.putInt(0, MAGIC);
+                first.putInt(4, VERSION);
+                first.putInt(8, r.chunkSize);
+            }
+            r.check();
+            r.scan();
+            // Clear what follows, so no reader takes stale records for new ones
+            for (long p = r.end; p < r.chunks.size() * (long) r.chunkSize; p += RECORD) {
+                MappedByteBuffer chunk = r.chunks.get((int) (p / r.chunkSize));
+                int at = (int) (p % r.chunkSize);
+                chunk.putLong(at, 0);
+                chunk.putLong(at + 8, 0);
+                chunk.putLong(at + 16, 0);
+            }
+            return r;
+        }
+
+        /**
+         * Open a store another process appends to, for reading
+         *
+         * @param file
+         * @return
+         * @throws IOException
+         */
+        static Results follow(File file) throws IOException {
+            Results r = new Results(file, false);
+            r.check();
+            r.scan();
+            return r;
+        }
+
+        void check() throws IOException {
+            if (channel.size() < RECORD) {
+                throw new IOException("Not a results file: " + file);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RECORD);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                    || header.getInt(8) <= 0 || header.getInt(8) % RECORD != 0) {
+                throw new IOException("Not a results file: " + file);
+            }
+            chunkSize = header.getInt(8);
+        }
+
+        /**
+         * Chunk k, mapped on first use. Mapping past the end of a writable
+         * file grows it; a read-only one returns null until it has grown.
+         *
+         * @param k
+         * @return
+         * @throws IOException
+         */
+        synchronized MappedByteBuffer chunk(int k) throws IOException {
+            while (chunks.size() <= k) {
+                long position = chunks.size() * (long) chunkSize;
+                if (!writable && channel.size() < position + chunkSize) {
+                    return null;
+                }
+                chunks.add(channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        position, chunkSize));
+            }
+            return chunks.get(k);
+        }
+
+        /**
+         * Append the grades of every answer in s
+         *
+         * @param s
+         * @param answers
+         * @throws IOException
+         */
+        synchronized void append(Submission s, int answers[]) throws IOException {
+            long now = System.currentTimeMillis();
+            for (int k = 0; k < s.questions.length; k++) {
+                append(s.id, s.questions[k], Score.right(s.questions[k], s.values[k], answers), now);
+            }
+        }
+
+        synchronized void append(int student, int question, boolean correct, long time) throws IOException {
+            MappedByteBuffer chunk = chunk((int) (end / chunkSize));
+            int at = (int) (end % chunkSize);
+            chunk.putInt(at, student);
+            chunk.putInt(at + 4, question);
+            chunk.put(at + 8, (byte) (correct ? 1 : 0));
+            chunk.putLong(at + 12, time);
+            chunk.putInt(at + 20, checksum(chunk, at));
+            indexed(student, question, correct);
+            end += RECORD;
+            notifyAll();
+        }
+
+        /**
+         * Take in the complete records appended since the last scan
+         *
+         * @return whether there were any
+         * @throws IOException
+         */
+        synchronized boolean scan() throws IOException {
+            long from = end;
+            while (true) {
+                MappedByteBuffer chunk = chunk((int) (end / chunkSize));
+                int at = (int) (end % chunkSize);
+                if (chunk == null || chunk.getInt(at + 20) != checksum(chunk, at)) {
+                    break;
+                }
+                indexed(chunk.getInt(at), chunk.getInt(at + 4), chunk.get(at + 8) != 0);
+                end += RECORD;
+            }
+            if (end > from) {
+                notifyAll();
+            }
+            return end > from;
+        }
+
+        int checksum(MappedByteBuffer chunk, int at) {
+            scratch.clear();
+            for (int i = 0; i < RECORD - 4; i++) {
+                scratch.put(chunk.get(at + i));
+            }
+            scratch.flip();
+            crc.reset();
+            crc.update(scratch);
+            return (int) crc.getValue();
+        }
+
+        void indexed(int student, int question, boolean correct) {
+            Score score = index.get(student);
+            if (score == null) {
+                index.putIfAbsent(student, new Score(0));
+                score = index.get(student);
+            }
+            score.record(question, correct);
+        }
+
+        /**
+         * Number of complete records
+         *
+         * @return
+         */
+        long size() {
+            return end / RECORD - 1;
+        }
+
+        /**
+         * Reader of the records from the first one on
+         *
+         * @return
+         */
+        Reader reader() {
+            return new Reader();
+        }
+
+        /**
+         * Write the appended records through to the file
+         */
+        synchronized void flush() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+
+        void close() {
+            if (writable) {
+                flush();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println(e.toString());
+            }
+        }
+
+        /**
+         * Cursor over the records, reading them in place from the mapped
+         * chunks
+         */
+        class Reader {
+            long position = RECORD;
+            int student;
+            int question;
+            boolean correct;
+            long time;
+
+            /**
+             * Move to the next record, waiting at most timeout for one to
+             * be appended
+             *
+             * @param timeout
+             * @param unit
+             * @return false if there is none yet
+             * @throws IOException
+             * @throws InterruptedException
+             */
+            boolean next(long timeout, TimeUnit unit) throws IOException, InterruptedException{
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                synchronized (Results.this) {
+                    while (position >= end) {
+                        if (!writable && scan()) {
+                            break;
+                        }
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            return false;
+                        }
+                        // Records of another process are not notified
+                        Results.this.wait(writable ? TimeUnit.NANOSECONDS.toMillis(left) + 1
+                                : Math.min(100, TimeUnit.NANOSECONDS.toMillis(left) + 1));
+                    }
+                }
+                MappedByteBuffer chunk = chunk((int) (position / chunkSize));
+                int at = (int) (position % chunkSize);
+                student = chunk.getInt(at);
+                question = chunk.getInt(at + 4);
+                correct = chunk.get(at + 8) != 0;
+                time = chunk.getLong(at + 12);
+                position += RECORD;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Competing consumer: one of several graders sharing the shards of a
+     * queue. Each grader registers under root/members and owns the shards
+     * whose index modulo the member count is its rank, through ephemeral
+     * root/owners/shard-k nodes, so ownership moves when a grader joins or
+     * dies. A submission is graded by creating root/results/id and deleting
+     * its elements in one transaction, so it is graded exactly once even
+     * when ownership moves mid-way.
+     */
+    static public class Grader extends SyncPrimitive {
+        // Elements read per round trip
+        static final int BATCH = 32;
+
+        String members;
+        String owners;
+        String results;
+        String done;
+        String pathName;
+        Queue q;
+        int answers[];
+        boolean owned[];
+        volatile boolean rebalance = true;
+        volatile boolean finished = false;
+        Reassembler partial = new Reassembler();
+
+        /**
+         * Constructor of grader
+         *
+         * @param address
+         * @param name Root of the graders' nodes
+         * @param answers
+         * @param q
+         */
+        Grader(String address, String name, int answers[], Queue q) {
+            super(address);
+            this.root = name;
+            this.members = root + "/members";
+            this.owners = root + "/owners";
+            this.results = root + "/results";
+            this.done = root + "/done";
+            this.answers = answers;
+            this.q = q;
+            this.owned = new boolean[q.shards.length];
+            dispatcher.register(members, this, Event.EventType.NodeChildrenChanged);
+            dispatcher.register(results, this, Event.EventType.NodeChildrenChanged);
+            dispatcher.register(done, this, Event.EventType.NodeCreated);
+            if (zk != null) {
+                try {
+                    ensure(members, owners, results);
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating grader: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+
+        /**
+         * Register and grade owned shards until the coordinator marks
+         * grading as done
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void run() throws KeeperException, InterruptedException{
+            pathName = create(members + "/g-", new byte[0], CreateMode.EPHEMERAL_SEQUENTIAL);
+            System.out.println("Grading as " + pathName);
+            for (int k = 0; k < owned.length; k++) {
+                q.own(k, false);
+            }
+            finished = exists(done, true) != null;
+            while (!finished) {
+                if (rebalance) {
+                    rebalance();
+                }
+                String paths[] = q.heads(BATCH);
+                if (paths.length == 0) {
+                    continue;
+                }
+                byte data[][] = q.read(paths);
+                for (int i = 0; i < paths.length; i++) {
+                    if (data[i] != null) {
+                        Submission whole = partial.add(data[i], paths[i]);
+                        if (whole != null) {
+                            publish(whole);
+                        }
+                    }
+                }
+            }
+            System.out.println("Grading done, leaving " + pathName);
+        }
+
+        /**
+         * Take the shards this grader should own and give up the rest
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void rebalance() throws KeeperException, InterruptedException{
+            rebalance = false;
+            List<String> list = getChildren(members, true);
+            Collections.sort(list, SEQUENCE_ORDER);
+            int rank = list.indexOf(pathName.substring(members.length() + 1));
+            boolean released = false;
+            for (int k = 0; k < owned.length; k++) {
+                boolean want = rank >= 0 && k % list.size() == rank;
+                String owner = owners + "/shard-" + k;
+                if (!want && owned[k]) {
+                    q.own(k, false);
+                    delete(owner, -1);
+                    owned[k] = false;
+                    released = true;
+                } else if (want && !owned[k]) {
+                    try {
+                        create(owner, pathName.getBytes(), CreateMode.EPHEMERAL);
+                        owned[k] = true;
+                        q.own(k, true);
+                    } catch (KeeperException.NodeExistsException e) {
+                        // Still held by its previous owner, retry once released
+                        if (exists(owner, this) == null) {
+                            rebalance = true;
+                        }
+                    }
+                }
+            }
+            if (released) {
+                // Chunks read from a released shard are read again by its
+                // new owner
+                partial.clear();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Owned shards: " + Arrays.toString(owned));
+            }
+        }
+
+        /**
+         * Record the grade of a submission and remove its elements in one
+         * transaction
+         *
+         * @param s
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void publish(Submission s) throws KeeperException, InterruptedException{
+            Score score = new Score(answers.length);
+            score.grade(s, answers);
+            List<Op> ops = new ArrayList<Op>();
+            ops.add(Op.create(results + "/" + s.id, score.encode(), Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+            for (String path : s.paths) {
+                ops.add(Op.delete(path, -1));
+            }
+            try {
+                multi(ops);
+            } catch (KeeperException.NodeExistsException e) {
+                // Graded before, only the elements were left behind
+                for (String path : s.paths) {
+                    try {
+                        delete(path, -1);
+                    } catch (KeeperException.NoNodeException ignored) {
+                    }
+                }
+            } catch (KeeperException.NoNodeException e) {
+                // Someone else consumed part of it, list the shards again
+                q.invalidate();
+            }
+        }
+
+        /**
+         * Coordinator duty: wait for the grades of expected students, print
+         * them and tell every grader to stop
+         *
+         * @param expected
+         * @param questions
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void collect(int expected, int questions) throws KeeperException, InterruptedException{
+            List<String> list;
+            synchronized (mutex) {
+                while ((list = getChildren(results, true)).size() < expected) {
+                    mutex.wait();
+                }
+            }
+            TreeMap<Integer, Score> scores = new TreeMap<Integer, Score>();
+            for (String child : list) {
+                scores.put(Integer.parseInt(child), Score.decode(getData(results + "/" + child, null)));
+            }
+            for (Map.Entry<Integer, Score> e : scores.entrySet()) {
+                e.getValue().report(e.getKey(), questions);
+            }
+            try {
+                create(done, new byte[0], CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e) {
+                // Another coordinator got there first
+            }
+        }
+
+        void recover(Session session) throws KeeperException, InterruptedException{
+            // Ownership went with the session, claim shards again
+            for (int k = 0; k < owned.length; k++) {
+                if (owned[k]) {
+                    ephemerals.remove(owners + "/shard-" + k);
+                    owned[k] = false;
+                    q.own(k, false);
+                }
+            }
+            rebalance = true;
+            super.recover(session);
+            finished = exists(done, true) != null;
+            q.wakeup();
+        }
+
+        void renamed(String from, String to) {
+            if (from.equals(pathName)) {
+                pathName = to;
+            }
+        }
+
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.NodeCreated && done.equals(event.getPath())) {
+                finished = true;
+                q.wakeup();
+            } else if (event.getType() == Event.EventType.NodeChildrenChanged && members.equals(event.getPath())
+                    || event.getType() == Event.EventType.NodeDeleted) {
+                rebalance = true;
+                q.wakeup();
+            }
+            super.process(event);
+        }
+    }
+
+    /**
+     * Leader election among professors. The leader refreshes its leader
+     * node every third of a lease, and the first follower takes over once
+     * the node went unrefreshed for MISSES leases in a row, without
+     * waiting for the leader's session to expire. By default that is 4.5 s,
+     * longer than the 3 s session timeout, so a leader stalled by a pause
+     * or a slow network that its session survives is not deposed; a
+     * shorter lease or fewer misses take over a hung leader sooner at the
+     * risk of deposing a live one. A deposed leader can no longer save its
+     * checkpoint either way.
+     */
+    static public class Leader extends SyncPrimitive {
+        // Queue elements the grading pipeline keeps in flight
+        static final int GRADING_WINDOW = 64;
+
+    	String leader;
+    	String id; //Id of the leader
+    	String pathName;
+        String professor;
+        int answers[];
+        int number_students;
+        int number_questions;
+        Queue q;
+        // Completed from process() once this professor is the leader
+        CompletableFuture<Boolean> elected = new CompletableFuture<Boolean>();
+        // Candidates, loaded once and then kept up to date
+        SequentialIndex index;
+        // Period after which a leader that stopped refreshing its node is
+        // taken over, without waiting for its session to expire
+        static final long LEASE = Long.getLong("leader.lease", 1500);
+        // Leases in a row the leader node must go unrefreshed before a
+        // follower takes over
+        static final int MISSES = Integer.getInteger("leader.misses", 3);
+        static final String CHECKPOINT = "checkpoint";
+        // Grading progress, saved with the version it was last written at,
+        // so a deposed leader can no longer overwrite it
+        String checkpoint;
+        int fence;
+        volatile boolean deposed;
+        // Predecessor whose lease is being monitored
+        String monitored;
+        // Threads refreshing this leader's lease and watching the leader's
+        Thread heartbeat;
+        Thread lease;
+        
+    	
+   	 /**
+         * Constructor of Leader
+         *
+         * @param address
+         * @param name Name of the election node
+         * @param leader Name of the leader node
+         * 
+         */
+        Leader(String address, String name, String leader, int id, String professor, int answers[], int number_students, int number_questions, Queue q) {
+            super(address);
+            this.root = name;
+            this.leader = leader;
+            this.id = new Integer(id).toString();
+            this.professor = professor;
+            this.answers = answers;
+            this.number_students = number_students;
+            this.number_questions = number_questions;
+            this.q = q;
+            this.checkpoint = name + "/" + CHECKPOINT;
+            // Create ZK node name
+            if (zk != null) {
+                try {
+                	//Create election znode
+                    ensure(root);
+                    //Checking for a leader
+                    Stat s2 = exists(leader, false);
+                    if (s2 != null) {
+                        byte[] idLeader = getData(leader, s2);
+                        System.out.println("Current judge: " + professor);
+                    }  
+                    
+                } catch (KeeperException e) {
+                    System.out.println("Keeper exception when instantiating queue: " + e.toString());
+                } catch (InterruptedException e) {
+                    System.out.println("Interrupted exception");
+                }
+            }
+        }
+        
+        boolean elect() throws KeeperException, InterruptedException{
+        	this.pathName = create(root + "/n-", new byte[0], CreateMode.EPHEMERAL_SEQUENTIAL);
+            System.out.println("My name is: "+ professor);
+        	return check();
+        }
+
+        /**
+         * Join the election without blocking. The future completes with true
+         * as soon as this professor becomes the leader.
+         *
+         * @return
+         */
+        synchronized CompletableFuture<Boolean> electAsync() {
+            try {
+                if (elect()) {
+                    elected.complete(true);
+                }
+            } catch (KeeperException e) {
+                elected.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                elected.completeExceptionally(e);
+            }
+            return elected;
+        }
+
+        /**
+         * Join the election and park until elected or the timeout elapses
+         *
+         * @param timeout
+         * @param unit
+         * @return true if elected
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        boolean elect(long timeout, TimeUnit unit) throws KeeperException, InterruptedException{
+            return await(electAsync(), timeout, unit);
+        }
+        
+        boolean check() throws KeeperException, InterruptedException{
+        	long suffix = sequence(pathName);
+        	if (index == null) {
+        		index = new SequentialIndex("n-");
+        		index.load(getChildren(root, false));
+        	}
+           	while (true) {
+        		if (LOG.isDebugEnabled()) {
+        			LOG.debug("Suffix: " + suffix + ", min: " + index.min());
+        		}
+        		if (index.isMin(suffix)) {
+        			this.leader();
+        			return true;
+        		}
+        		long previous = index.predecessor(suffix);
+        		String previousPath = root + "/" + index.name(previous);
+        		//Exists with watch
+        		Stat s = exists(previousPath, this);
+        		if (LOG.isDebugEnabled()) {
+        			LOG.debug("Watching " + previousPath);
+        		}
+        		//Step 5
+        		if (s != null) {
+        			if (previous == index.min()) {
+        				monitor(previousPath);
+        			}
+        			//Wait for notification
+        			break;
+        		}
+        		index.load(getChildren(root, false));
+        	}
+        	if (LOG.isDebugEnabled()) {
+        		LOG.debug(pathName + " is waiting for a notification!");
+        	}
+        	return false;
+        	
+        }
+        
+        synchronized public void process(WatchedEvent event) {
+            watched(event);
+            synchronized (mutex) {
+            	if (event.getPath() != null && event.getPath().equals(pathName)) {
+            		// Our election node is gone, a successor takes over
+            		if (event.getType() == Event.EventType.NodeDeleted) {
+            			deposed = true;
+            		}
+            		return;
+            	}
+            	if (event.getType() == Event.EventType.NodeDeleted) {
+            		index.remove(sequence(event.getPath()));
+            		try {
+            			boolean success = check();
+            			if (success) {
+            				elected.complete(true);
+            			}
+            		} catch (Exception e) {elected.completeExceptionally(e);}
+            	}
+            }
+        }
+        
+        synchronized void recover(Session session) throws KeeperException, InterruptedException{
+            if (elected.isDone()) {
+                // A follower may have taken over, leave it to them
+                System.out.println("Leadership lost with the expired session");
+                deposed = true;
+                ephemerals.clear();
+            }
+            super.recover(session);
+        }
+
+        synchronized void renamed(String from, String to) throws KeeperException, InterruptedException{
+            if (!from.equals(pathName) || elected.isDone()) {
+                return;
+            }
+            synchronized (mutex) {
+                pathName = to;
+                index = null;
+                if (check()) {
+                    elected.complete(true);
+                }
+            }
+        }
+
+        /**
+         * Store the grades are appended to, named by -Dresults, if set and
+         * it can be opened
+         *
+         * @return
+         */
+        static Results results() {
+            String file = System.getProperty("results");
+            if (file == null) {
+                return null;
+            }
+            try {
+                return Results.open(new File(file));
+            } catch (IOException e) {
+                System.out.println("Could not open results: " + e.toString());
+                return null;
+            }
+        }
+
+        /**
+         * Counters of the live aggregate scores under the root named by
+         * -Dcounters, if set
+         *
+         * @param address
+         * @return
+         */
+        static Counter counters(String address) {
+            String root = System.getProperty("counters");
+            return root == null ? null : new Counter(address, root, Integer.getInteger("counter.stripes", 8));
+        }
+
+        void leader() throws KeeperException, InterruptedException {
+			System.out.println("Become a leader: "+ professor +"!");
+            //Create leader znode
+            Stat s2 = exists(leader, false);
+            if (s2 == null) {
+                create(leader, id.getBytes(), CreateMode.EPHEMERAL);
+            } else {
+            	setData(leader, id.getBytes(), -1);
+            }
+            monitored = null;
+            // Learn when a follower takes over
+            exists(pathName, this);
+            heartbeat();
+        }
+
+        /**
+         * Refresh the leader node every third of the lease, so followers
+         * can tell a live leader from a stalled one
+         */
+        void heartbeat() {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (!deposed) {
+                            Thread.sleep(LEASE / 3);
+                            try {
+                                setData(leader, id.getBytes(), -1);
+                            } catch (KeeperException.NoNodeException e) {
+                                create(leader, id.getBytes(), CreateMode.EPHEMERAL);
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    } catch (KeeperException e) {
+                        System.out.println("Leader heartbeat stopped: " + e.toString());
+                    }
+                }
+            }, "leader-heartbeat");
+            t.setDaemon(true);
+            t.start();
+            heartbeat = t;
+        }
+
+        /**
+         * Watch the leader's lease while predecessor, the leader's election
+         * node, exists. If the leader node is not refreshed for MISSES
+         * leases in a row the leader is deposed by deleting predecessor.
+         *
+         * @param predecessor
+         */
+        void monitor(final String predecessor) {
+            if (predecessor.equals(monitored)) {
+                return;
+            }
+            monitored = predecessor;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        int version = -1;
+                        int missed = 0;
+                        while (predecessor.equals(monitored)) {
+                            Thread.sleep(LEASE);
+                            Stat s = exists(leader, false);
+                            missed = s != null && s.getVersion() == version ? missed + 1 : 0;
+                            if (missed >= MISSES && exists(predecessor, false) != null) {
+                                System.out.println("Leader lease expired, taking over");
+                                delete(predecessor, -1);
+                                return;
+                            }
+                            version = s == null ? -1 : s.getVersion();
+                        }
+                    } catch (InterruptedException e) {
+                        // Stopped
+                    } catch (KeeperException e) {
+                        // Deleted meanwhile
+                    }
+                }
+            }, "leader-lease");
+            t.setDaemon(true);
+            t.start();
+            lease = t;
+        }
+
+        /**
+         * Stop refreshing this leader's lease and watching the leader's
+         */
+        void stop() {
+            deposed = true;
+            monitored = null;
+            if (heartbeat != null) {
+                heartbeat.interrupt();
+            }
+            if (lease != null) {
+                lease.interrupt();
+            }
+        }
+
+        /**
+         * Leave: stop the lease threads, then delete the nodes still owned
+         */
+        void close() {
+            stop();
+            super.close();
+        }
+
+        /**
+         * Load the checkpoint of a previous leader, or create an empty one,
+         * bumping its version so that leader can no longer save
+         *
+         * @return
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        Checkpoint resume() throws KeeperException, InterruptedException {
+            while (true) {
+                try {
+                    Stat stat = new Stat();
+                    byte b[] = getData(checkpoint, stat);
+                    Checkpoint c = Checkpoint.decode(b);
+                    fence = setData(checkpoint, b, stat.getVersion()).getVersion();
+                    return c;
+                } catch (KeeperException.NoNodeException e) {
+                    Checkpoint c = new Checkpoint(q.shards.length);
+                    try {
+                        create(checkpoint, c.encode(), CreateMode.PERSISTENT);
+                        fence = 0;
+                        return c;
+                    } catch (KeeperException.NodeExistsException e2) {
+                        // Created by another leader, read it
+                    }
+                } catch (KeeperException.BadVersionException e) {
+                    // Changed while reading, read it again
+                }
+            }
+        }
+
+        /**
+         * Delete the elements a previous leader graded but did not delete
+         *
+         * @param c
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void purge(Checkpoint c) throws KeeperException, InterruptedException {
+            for (int k = 0; k < q.shards.length; k++) {
+                for (String name : getChildren(q.shards[k].path, false)) {
+                    if (sequence(name) <= c.watermarks[k]) {
+                        try {
+                            delete(q.shards[k].path + "/" + name, -1);
+                        } catch (KeeperException.NoNodeException e) {
+                            // Consumed meanwhile
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Save grading progress, unless another leader has taken over
+         *
+         * @param c
+         * @throws KeeperException.BadVersionException when deposed
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void save(Checkpoint c) throws KeeperException, InterruptedException {
+            fence = setData(checkpoint, c.encode(), fence).getVersion();
+        }
+        
+        void compute() {
+            System.out.println("I will correct all the essays (Elected)");
+
+            try{
+                Checkpoint c = resume();
+                if (!c.scores.isEmpty()) {
+                    System.out.println("Resuming from checkpoint: " + c.scores.size() + " students graded");
+                }
+                purge(c);
+                GradingPipeline pipeline = new CheckpointedPipeline(this, c, GRADING_WINDOW,
+                        Runtime.getRuntime().availableProcessors());
+                pipeline.results = results();
+                pipeline.counters = counters(session.address);
+                Map<Integer, Score> scores = pipeline.run();
+                for (Map.Entry<Integer, Score> e : new TreeMap<Integer, Score>(scores).entrySet()) {
+                    e.getValue().report(e.getKey(), this.number_questions);
+                }
+                if (pipeline.results != null) {
+                    pipeline.results.close();
+                }
+                // Graded, the next exam starts without a checkpoint
+                delete(checkpoint, fence);
+            } catch (KeeperException.BadVersionException e){
+                System.out.println("Deposed by another leader, stopping");
+            } catch (KeeperException e){
+                System.out.println("Keeper exception when grading: " + e.toString());
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+    		System.exit(0);
+        }
+    }
+
+
+    /**
+     * Compaction of the roots of the primitives, which otherwise keep the
+     * nodes of aborted runs forever and make every getChildren on them
+     * slower. A pass lists each root, and the shards below it, and deletes
+     * the stale leaves: persistent sequential nodes, ready and checkpoint
+     * nodes not changed for longer than age, and ephemeral nodes of the
+     * sessions of this process that no primitive holds any more. Ephemeral
+     * nodes of other processes go with their sessions. Deletes go in multi
+     * batches of at most batch nodes and rate nodes per second, and the
+     * persistent nodes deleted can be appended to an archive file.
+     */
+    static public class Reaper extends SyncPrimitive {
+        static final long AGE = Long.getLong("reaper.age", 3600000);
+        static final int BATCH = Integer.getInteger("reaper.batch", 100);
+        static final int RATE = Integer.getInteger("reaper.rate", 1000);
+        // Ephemeral nodes younger than this may not be recorded yet by the
+        // primitive that created them
+        static final long GRACE = 10000;
+
+        String roots[];
+        long age;
+        int batch;
+        int rate;
+        // Path, creation time, length and data of each persistent node
+        // deleted, or null
+        DataOutputStream archive;
+        // Nodes deleted, and archived, under each root
+        ConcurrentHashMap<String, LongAdder> reclaimed = new ConcurrentHashMap<String, LongAdder>();
+        ConcurrentHashMap<String, LongAdder> archived = new ConcurrentHashMap<String, LongAdder>();
+        Thread thread;
+
+        /**
+         * Reaper with the settings of -Dreaper.age, -Dreaper.batch and
+         * -Dreaper.rate, archiving to -Dreaper.archive if set
+         *
+         * @param address
+         * @param roots
+         */
+        Reaper(String address, String... roots) {
+            this(address, AGE, BATCH, RATE,
+                    System.getProperty("reaper.archive") == null ? null : new File(System.getProperty("reaper.archive")),
+                    roots);
+        }
+
+        /**
+         * Constructor of reaper
+         *
+         * @param address
+         * @param age Time, in ms, after which unchanged persistent nodes are stale
+         * @param batch Most nodes deleted in one multi
+         * @param rate Most nodes deleted per second
+         * @param archive File the deleted persistent nodes are appended to, or null
+         * @param roots
+         */
+        Reaper(String address, long age, int batch, int rate, File archive, String... roots) {
+            super(address);
+            this.roots = roots;
+            this.age = age;
+            this.batch = Math.max(1, batch);
+            this.rate = Math.max(1, rate);
+            if (archive != null) {
+                try {
+                    this.archive = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(archive, true)));
+                } catch (IOException e) {
+                    System.out.println("Could not open archive: " + e.toString());
+                }
+            }
+        }
+
+        /**
+         * Reaper running every -Dreaper.period ms in the background, if set
+         *
+         * @param address
+         * @param roots
+         * @return
+         */
+        static Reaper of(String address, String... roots) {
+            Long period = Long.getLong("reaper.period");
+            if (period == null) {
+                return null;
+            }
+            Reaper reaper = new Reaper(address, roots);
+            reaper.start(period);
+            return reaper;
+        }
+
+        /**
+         * Run a pass every period ms on a daemon thread, until closed
+         *
+         * @param period
+         */
+        void start(final long period) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            try {
+                                pass();
+                            } catch (KeeperException e) {
+                                System.out.println("Keeper exception when reaping: " + e.toString());
+                            }
+                            Thread.sleep(period);
+                        }
+                    } catch (InterruptedException e) {
+                        // Closed
+                    }
+                }
+            }, "reaper");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Look once at every root and delete what is stale
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void pass() throws KeeperException, InterruptedException{
+            Map<Long, Set<String>> held = sessions.held();
+            for (String root : roots) {
+                reap(root, root, true, held);
+            }
+            if (archive != null) {
+                try {
+                    archive.flush();
+                } catch (IOException e) {
+                    System.out.println("Could not write archive: " + e.toString());
+                }
+            }
+        }
+
+        /**
+         * Delete the stale children of parent, and look into the shards
+         * right under a root
+         *
+         * @param root
+         * @param parent
+         * @param top whether parent is the root
+         * @param held
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void reap(String root, String parent, boolean top, Map<Long, Set<String>> held)
+                throws KeeperException, InterruptedException{
+            List<String> children;
+            try {
+                children = getChildren(parent, false);
+            } catch (KeeperException.NoNodeException e) {
+                return;
+            }
+            // Stats of all children at once, as ensure() does
+            final Stat stats[] = new Stat[children.size()];
+            final CountDownLatch checked = new CountDownLatch(children.size());
+            for (int i = 0; i < stats.length; i++) {
+                exists(parent + "/" + children.get(i), new AsyncCallback.StatCallback() {
+                    public void processResult(int rc, String path, Object ctx, Stat stat) {
+                        stats[(Integer) ctx] = stat;
+                        checked.countDown();
+                    }
+                }, i);
+            }
+            checked.await();
+            long now = System.currentTimeMillis();
+            List<String> stale = new ArrayList<String>();
+            List<Stat> staleStats = new ArrayList<Stat>();
+            for (int i = 0; i < stats.length; i++) {
+                String name = children.get(i);
+                String path = parent + "/" + name;
+                Stat stat = stats[i];
+                if (stat == null) {
+                    // Gone meanwhile
+                } else if (stat.getNumChildren() > 0) {
+                    if (top && !sequential(name)) {
+                        reap(root, path, false, held);
+                    }
+                } else if (stat.getEphemeralOwner() != 0) {
+                    Set<String> mine = held.get(stat.getEphemeralOwner());
+                    if (mine != null && !mine.contains(path) && now - stat.getCtime() > GRACE) {
+                        stale.add(path);
+                        staleStats.add(stat);
+                    }
+                } else if ((sequential(name) || name.equals(Barrier.READY) || name.equals(Leader.CHECKPOINT))
+                        && now - stat.getMtime() > age) {
+                    stale.add(path);
+                    staleStats.add(stat);
+                }
+            }
+            for (int from = 0; from < stale.size(); from += batch) {
+                int to = Math.min(stale.size(), from + batch);
+                delete(root, stale.subList(from, to), staleStats.subList(from, to));
+            }
+        }
+
+        /**
+         * Whether a node name ends with a sequence number
+         *
+         * @param name
+         * @return
+         */
+        static boolean sequential(String name) {
+            if (name.length() < 10) {
+                return false;
+            }
+            for (int i = name.length() - 10; i < name.length(); i++) {
+                if (!Character.isDigit(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Delete one batch in a single multi, at the versions seen, and if
+         * some node changed or went meanwhile, one at a time. Then wait as
+         * long as the batch takes at the configured rate.
+         *
+         * @param root
+         * @param paths
+         * @param stats
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void delete(String root, List<String> paths, List<Stat> stats) throws KeeperException, InterruptedException{
+            long start = System.nanoTime();
+            byte data[][] = archive == null ? null : read(paths);
+            List<Op> ops = new ArrayList<Op>();
+            for (int i = 0; i < paths.size(); i++) {
+                ops.add(Op.delete(paths.get(i), stats.get(i).getVersion()));
+            }
+            boolean deleted[] = new boolean[paths.size()];
+            try {
+                multi(ops);
+                Arrays.fill(deleted, true);
+            } catch (KeeperException e) {
+                if (!raced(e)) {
+                    throw e;
+                }
+                for (int i = 0; i < paths.size(); i++) {
+                    try {
+                        delete(paths.get(i), stats.get(i).getVersion());
+                        deleted[i] = true;
+                    } catch (KeeperException ex) {
+                        if (!raced(ex)) {
+                            throw ex;
+                        }
+                    }
+                }
+            }
+            int n = 0;
+            for (int i = 0; i < paths.size(); i++) {
+                if (deleted[i]) {
+                    n++;
+                    if (archive != null && stats.get(i).getEphemeralOwner() == 0 && data[i] != null) {
+                        archive(root, paths.get(i), stats.get(i), data[i]);
+                    }
+                }
+            }
+            count(reclaimed, root, n);
+            metrics.count("reclaimed", n);
+            long wait = TimeUnit.SECONDS.toNanos(paths.size()) / rate - (System.nanoTime() - start);
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        /**
+         * Whether a delete failed because the node was consumed, changed
+         * or given children since it was seen stale
+         *
+         * @param e
+         * @return
+         */
+        static boolean raced(KeeperException e) {
+            return e.code() == KeeperException.Code.NONODE || e.code() == KeeperException.Code.BADVERSION
+                    || e.code() == KeeperException.Code.NOTEMPTY;
+        }
+
+        /**
+         * Data of the given nodes, read with pipelined requests. Nodes
+         * already gone read as null.
+         *
+         * @param paths
+         * @return
+         * @throws InterruptedException
+         */
+        byte[][] read(List<String> paths) throws InterruptedException{
+            Queue.Claim c = new Queue.Claim(paths.size(), null);
+            for (int i = 0; i < paths.size(); i++) {
+                getData(paths.get(i), c, i);
+            }
+            c.done.await();
+            return c.data;
+        }
+
+        void archive(String root, String path, Stat stat, byte data[]) {
+            try {
+                archive.writeUTF(path);
+                archive.writeLong(stat.getCtime());
+                archive.writeInt(data.length);
+                archive.write(data);
+                count(archived, root, 1);
+            } catch (IOException e) {
+                System.out.println("Could not write archive: " + e.toString());
+            }
+        }
+
+        static void count(ConcurrentHashMap<String, LongAdder> counts, String root, long n) {
+            LongAdder c = counts.get(root);
+            if (c == null) {
+                counts.putIfAbsent(root, new LongAdder());
+                c = counts.get(root);
+            }
+            c.add(n);
+        }
+
+        /**
+         * Print the nodes reclaimed so far under each root
+         */
+        void report() {
+            for (String root : roots) {
+                LongAdder r = reclaimed.get(root);
+                LongAdder a = archived.get(root);
+                System.out.println(String.format("Reclaimed %d nodes under %s, archived %d", r == null ? 0 : r.sum(),
+                        root, a == null ? 0 : a.sum()));
+            }
+        }
+
+        /**
+         * Stop the background passes and leave
+         */
+        void close() {
+            if (thread != null) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    System.out.println("Could not close archive: " + e.toString());
+                }
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Load simulator: the students and professors of one exam in a single
+     * JVM, each on its own virtual thread when the runtime has them.
+     * Students think, meet at the barrier and hand in their answers under
+     * the lock, and the elected professor grades all of them.
+     */
+    static class Simulation {
+        String host;
+        int questions;
+        int students;
+        int professors;
+        // Longest think time per question, in milliseconds
+        long think;
+        // Students handing in at once: one takes the lock, more share a
+        // semaphore
+        int submitters = Integer.getInteger("submitters", 1);
+        // Hands the answers in asynchronously, with -Doutbox
+        Outbox outbox;
+        // Whether students also wait for each other after every question
+        boolean rounds = Boolean.getBoolean("rounds");
+        // Latency of each phase, kept with the metrics of the primitives
+        Metrics metrics = Metrics.of("Simulation");
+
+        Simulation(String host, int questions, int students, int professors, long think) {
+            this.host = host;
+            this.questions = questions;
+            this.students = students;
+            this.professors = professors;
+            this.think = think;
+        }
+
+        /**
+         * Executor running each task on a new virtual thread, or on a
+         * cached pool of platform threads before Java 21
+         *
+         * @return
+         */
+        static ExecutorService participants() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads not available, using platform threads");
+                return Executors.newCachedThreadPool();
+            }
+        }
+
+        /**
+         * Run the exam and print a summary
+         *
+         * @throws KeeperException
+         * @throws InterruptedException
+         */
+        void run() throws KeeperException, InterruptedException{
+            final int answers[] = new int[questions];
+            for (int a = 0; a < questions; a++) {
+                answers[a] = a + 1;
+            }
+            bootstrap(host, "/sim-app3", "/sim-b1", "/sim-lock", "/sim-semaphore", "/sim-election", "/sim-rounds");
+            final Queue q = new Queue(host, "/sim-app3", Integer.getInteger("queue.shards", 1));
+            outbox = Outbox.of(host, q);
+            final CompletableFuture<Boolean> done = new CompletableFuture<Boolean>();
+            final ConcurrentHashMap<Integer, Score> scores = new ConcurrentHashMap<Integer, Score>();
+            ExecutorService threads = participants();
+            long start = System.nanoTime();
+            for (int p = 0; p < professors; p++) {
+                final int id = p;
+                threads.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            professor(id, answers, q, scores, done);
+                        } catch (InterruptedException e) {
+                            // Not elected before the end
+                        } catch (KeeperException e) {
+                            done.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+            for (int s = 0; s < students; s++) {
+                final int id = s;
+                threads.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            student(id, q);
+                        } catch (InterruptedException e) {
+                            // Ended early
+                        } catch (KeeperException e) {
+                            done.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+            boolean finished = await(done, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            long elapsed = System.nanoTime() - start;
+            threads.shutdownNow();
+            if (outbox != null) {
+                outbox.close();
+            }
+            if (finished) {
+                summary(scores, elapsed);
+            }
+        }
+
+        void professor(int id, int answers[], Queue q, Map<Integer, Score> scores, CompletableFuture<Boolean> done)
+                throws KeeperException, InterruptedException{
+            Leader leader = new Leader(host, "/sim-election", "/sim-leader", id, "Professor " + (id + 1),
+                    answers, students, questions, q);
+            if (leader.elect(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                long start = System.nanoTime();
+                GradingPipeline pipeline = new GradingPipeline(q, answers, students,
+                        Leader.GRADING_WINDOW, Runtime.getRuntime().availableProcessors());
+                pipeline.results = Leader.results();
+                pipeline.counters = Leader.counters(host);
+                scores.putAll(pipeline.run());
+                if (pipeline.results != null) {
+                    pipeline.results.close();
+                }
+                metrics.record("grade", start);
+                done.complete(true);
+            }
+        }
+
+        void student(int id, Queue q) throws KeeperException, InterruptedException{
+            int mine[] = new int[questions];
+            CyclicBarrier question = rounds ? new CyclicBarrier(host, "/sim-rounds", students, "student-" + id) : null;
+            for (int i = 0; i < questions; i++) {
+                if (think > 0) {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(think));
+                }
+                mine[i] = ThreadLocalRandom.current().nextInt(5) + 1;
+                if (question != null) {
+                    question.await();
+                }
+            }
+            if (question != null) {
+                question.close();
+            }
+
+            long start = System.nanoTime();
+            Barrier b = new Barrier(host, "/sim-b1", students, "student-" + id);
+            b.enter();
+            b.leave();
+            b.close();
+            metrics.record("barrier", start);
+
+            long t = System.nanoTime();
+            if (submitters > 1) {
+                Semaphore semaphore = new Semaphore(host, "/sim-semaphore", submitters);
+                semaphore.acquire(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                metrics.record("lock", t);
+                t = System.nanoTime();
+                handIn(id, mine, q);
+                semaphore.release();
+                semaphore.close();
+            } else {
+                Lock lock = new Lock(host, "/sim-lock", 0, id, mine, q);
+                lock.lock(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                metrics.record("lock", t);
+                t = System.nanoTime();
+                handIn(id, mine, q);
+                lock.unlock();
+                lock.close();
+            }
+            metrics.record("submit", t);
+            metrics.record("student", start);
+        }
+
+        void handIn(int id, int answers[], Queue q) throws KeeperException, InterruptedException{
+            if (outbox != null) {
+                outbox.submit(id, answers);
+            } else {
+                q.produceSubmission(id, answers);
+            }
+        }
+
+        /**
+         * Print throughput, the latency of each phase and of the ZooKeeper
+         * calls of each kind of primitive
+         *
+         * @param scores
+         * @param elapsed
+         */
+        void summary(Map<Integer, Score> scores, long elapsed) {
+            long correct = 0;
+            for (Score score : scores.values()) {
+                correct += score.correct();
+            }
+            double seconds = elapsed / 1e9;
+            System.out.println("Simulated " + students + " students and " + professors + " professors over "
+                    + sessions.size + " sessions, " + questions + " questions, think time up to " + think + " ms, "
+                    + submitters + " handing in at once");
+            System.out.println(String.format("Graded %d submissions in %.3f s: %.1f students/s, mean score %.2f/%d",
+                    scores.size(), seconds, scores.size() / seconds,
+                    scores.isEmpty() ? 0.0 : (double) correct / scores.size(), questions));
+            System.out.println(String.format("%-24s %8s %10s %10s %10s %10s", "latency (ms)", "count", "mean", "p50", "p99", "max"));
+            for (Metrics m : new TreeMap<String, Metrics>(Metrics.all).values()) {
+                for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(m.latencies).entrySet()) {
+                    Histogram h = e.getValue();
+                    long count = h.count.sum();
+                    System.out.println(String.format("%-24s %8d %10.3f %10.3f %10.3f %10.3f", m.name + "." + e.getKey(),
+                            count, count == 0 ? 0.0 : h.total.sum() / 1e6 / count, h.percentile(0.5) / 1e6,
+                            h.percentile(0.99) / 1e6, h.max.get() / 1e6));
+                }
+            }
+        }
+    }
+
+    /**
+     * Rerun a recorded trace against a standalone server in this process,
+     * on as many sessions as were recorded, and compare the latency of
+     * each kind of call with the recording. Calls are issued
+     * asynchronously in the order they started, at their recorded times,
+     * or when fast as soon as fewer than WINDOW are outstanding. Each
+     * session keeps its calls in order, so as long as the recording also
+     * started on an empty tree, every call meets the same nodes and
+     * sequence numbers and gets the same result.
+     */
+    static class Replay implements Watcher {
+        static final int WINDOW = 1000;
+
+        List<Trace.Call> calls;
+        boolean fast;
+        ZooKeeper handles[];
+        CountDownLatch connected;
+        ConcurrentHashMap<String, Histogram> recorded = new ConcurrentHashMap<String, Histogram>();
+        ConcurrentHashMap<String, Histogram> replayed = new ConcurrentHashMap<String, Histogram>();
+        LongAdder differences = new LongAdder();
+        LongAdder watches = new LongAdder();
+        long recordedWatches = 0;
+        java.util.concurrent.Semaphore window = new java.util.concurrent.Semaphore(WINDOW);
+
+        Replay(List<Trace.Call> calls, boolean fast) {
+            this.calls = calls;
+            this.fast = fast;
+        }
+
+        public void process(WatchedEvent event) {
+            if (event.getType() != Event.EventType.None) {
+                watches.increment();
+            } else if (event.getState() == Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        }
+
+        void run() throws IOException, InterruptedException{
+            int sessions = 1;
+            for (Trace.Call c : calls) {
+                sessions = Math.max(sessions, c.session + 1);
+            }
+            File dir = Files.createTempDirectory("zk-replay").toFile();
+            ServerSocket socket = new ServerSocket(0);
+            int port = socket.getLocalPort();
+            socket.close();
+            ServerCnxnFactory factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", port),
+                    sessions + 10);
+            factory.startup(new ZooKeeperServer(dir, dir, 2000));
+            handles = new ZooKeeper[sessions];
+            connected = new CountDownLatch(sessions);
+            for (int i = 0; i < sessions; i++) {
+                handles[i] = new ZooKeeper("127.0.0.1:" + port, 3000, this);
+            }
+            connected.await();
+
+            ArrayList<Trace.Call> ordered = new ArrayList<Trace.Call>(calls);
+            Collections.sort(ordered, new Comparator<Trace.Call>() {
+                public int compare(Trace.Call a, Trace.Call b) {
+                    return Long.compare(a.start, b.start);
+                }
+            });
+            long first = ordered.isEmpty() ? 0 : ordered.get(0).start;
+            long begin = System.nanoTime();
+            for (Trace.Call c : ordered) {
+                if (c.op == Trace.WATCH) {
+                    recordedWatches++;
+                    continue;
+                }
+                histogram(recorded, c.op).record(c.latency * 1000);
+                if (!fast) {
+                    long wait = begin + (c.start - first) * 1000 - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                window.acquire();
+                issue(c);
+            }
+            window.acquire(WINDOW);
+            long elapsed = System.nanoTime() - begin;
+
+            for (ZooKeeper zk : handles) {
+                zk.close();
+            }
+            factory.shutdown();
+            remove(dir);
+            report(elapsed);
+        }
+
+        /**
+         * Send one call, which completes on its own session's event thread
+         *
+         * @param c
+         */
+        void issue(Trace.Call c) {
+            ZooKeeper zk = handles[c.session];
+            Done done = new Done(c);
+            switch (c.op) {
+            case Trace.CREATE:
+                try {
+                    zk.create(c.path, new byte[c.a], Ids.OPEN_ACL_UNSAFE, CreateMode.fromFlag(c.b), done, null);
+                } catch (KeeperException e) {
+                    done.processResult(e.code().intValue(), c.path, null);
+                }
+                break;
+            case Trace.EXISTS:
+                zk.exists(c.path, c.a != 0, done, null);
+                break;
+            case Trace.GET_CHILDREN:
+                zk.getChildren(c.path, c.a != 0, (AsyncCallback.ChildrenCallback) done, null);
+                break;
+            case Trace.GET_DATA:
+                zk.getData(c.path, c.a != 0, done, null);
+                break;
+            case Trace.SET_DATA:
+                zk.setData(c.path, new byte[c.a], c.b, done, null);
+                break;
+            case Trace.DELETE:
+                zk.delete(c.path, c.b, done, null);
+                break;
+            case Trace.MULTI:
+                List<Op> ops = new ArrayList<Op>();
+                for (Trace.Call op : c.ops) {
+                    if (op.op == Trace.CREATE) {
+                        ops.add(Op.create(op.path, new byte[op.a], Ids.OPEN_ACL_UNSAFE, op.b));
+                    } else if (op.op == Trace.SET_DATA) {
+                        ops.add(Op.setData(op.path, new byte[op.a], op.b));
+                    } else if (op.op == Trace.DELETE) {
+                        ops.add(Op.delete(op.path, op.b));
+                    } else {
+                        ops.add(Op.check(op.path, op.b));
+                    }
+                }
+                zk.multi(ops, new AsyncCallback.MultiCallback() {
+                    public void processResult(int rc, String path, Object ctx, List<OpResult> results) {
+                        done.processResult(rc, path, ctx);
+                    }
+                }, null);
+                break;
+            default:
+                done.processResult(c.rc, c.path, null);
+            }
+        }
+
+        /**
+         * Completion of a replayed call, whatever its kind
+         */
+        class Done implements AsyncCallback.StringCallback, AsyncCallback.StatCallback,
+                AsyncCallback.ChildrenCallback, AsyncCallback.DataCallback, AsyncCallback.VoidCallback {
+            Trace.Call call;
+            long start = System.nanoTime();
+
+            Done(Trace.Call call) {
+                this.call = call;
+            }
+
+            public void processResult(int rc, String path, Object ctx) {
+                histogram(replayed, call.op).record(System.nanoTime() - start);
+                if (rc != call.rc) {
+                    differences.increment();
+                }
+                window.release();
+            }
+
+            public void processResult(int rc, String path, Object ctx, String name) {
+                processResult(rc, path, ctx);
+            }
+
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                processResult(rc, path, ctx);
+            }
+
+            public void processResult(int rc, String path, Object ctx, List<String> children) {
+                processResult(rc, path, ctx);
+            }
+
+            public void processResult(int rc, String path, Object ctx, byte data[], Stat stat) {
+                processResult(rc, path, ctx);
+            }
+        }
+
+        static Histogram histogram(ConcurrentHashMap<String, Histogram> all, byte op) {
+            Histogram h = all.get(Trace.NAMES[op]);
+            if (h == null) {
+                all.putIfAbsent(Trace.NAMES[op], new Histogram());
+                h = all.get(Trace.NAMES[op]);
+            }
+            return h;
+        }
+
+        static void remove(File f) {
+            File children[] = f.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    remove(child);
+                }
+            }
+            f.delete();
+        }
+
+        void report(long elapsed) {
+            System.out.println(String.format("Replayed %d calls on %d sessions in %.3f s%s: %d results differ, "
+                    + "%d watch events (recorded %d)", calls.size() - recordedWatches, handles.length, elapsed / 1e9,
+                    fast ? " as fast as possible" : "", differences.sum(), watches.sum(), recordedWatches));
+            System.out.println(String.format("%-14s %8s %12s %12s %12s %12s %9s", "latency (ms)", "count",
+                    "recorded", "p99", "replayed", "p99", "change"));
+            for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(recorded).entrySet()) {
+                Histogram before = e.getValue();
+                Histogram after = histogram(replayed, (byte) Arrays.asList(Trace.NAMES).indexOf(e.getKey()));
+                long count = before.count.sum();
+                double was = before.total.sum() / 1e6 / count;
+                double now = after.count.sum() == 0 ? 0.0 : after.total.sum() / 1e6 / after.count.sum();
+                System.out.println(String.format("%-14s %8d %12.3f %12.3f %12.3f %12.3f %+8.1f%%", e.getKey(), count,
+                        was, before.percentile(0.99) / 1e6, now, after.percentile(0.99) / 1e6,
+                        was == 0 ? 0.0 : (now - was) / was * 100));
+            }
+        }
+    }
+
+    public static void main(String args[]) {
+        if (args[0].equals("simulate")) {
+            simulate(args);
+            return;
+        }
+        if (args[0].equals("results")) {
+            results(args);
+            return;
+        }
+        if (args[0].equals("replay")) {
+            replay(args);
+            return;
+        }
+        if (args[0].equals("scores")) {
+            scores(args);
+            return;
+        }
+        if (args[0].equals("reap")) {
+            reap(args);
+            return;
+        }
+        int number_students = Integer.getInteger("students", 2);
+        bootstrap(args[1], "/app3", "/b1", "/lock", "/election");
+        Reaper.of(args[1], "/app3", "/b1", "/lock", "/election");
+        Queue q = new Queue(args[1], "/app3", Integer.getInteger("queue.shards", 1));
+        if (args[0].equals("student"))
+            student(args, number_students, q);
+        else if (args[0].equals("professor"))
+            professor(args, number_students, q);
+        else
+            System.err.println("Unknown option");
+    }
+
+    /**
+     * Load simulation: simulate host questions students professors [think]
+     */
+    public static void simulate(String args[]) {
+        long think = args.length > 5 ? Long.parseLong(args[5]) : 0;
+        Simulation simulation = new Simulation(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                Integer.parseInt(args[4]), think);
+        try{
+            simulation.run();
+            // Ends the sessions, so the ephemeral nodes go away now
+            sessions.close();
+        } catch (KeeperException e){
+            e.printStackTrace();
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Print the grades in a results store, then the score of every
+     * student in it. With f, keep reading while the leader appends, until
+     * no grade comes for 10 seconds.
+     *
+     * @param args results file questions [f]
+     */
+    public static void results(String args[]) {
+        int number_questions = new Integer(args[2]);
+        boolean follow = args.length > 3 && args[3].equals("f");
+        try {
+            Results store = Results.follow(new File(args[1]));
+            Results.Reader reader = store.reader();
+            while (reader.next(follow ? 10 : 0, TimeUnit.SECONDS)) {
+                System.out.println("Student: " + reader.student + " | Question: " + (reader.question + 1)
+                        + " | Solution: " + (reader.correct ? "Correct" : "Incorrect"));
+            }
+            for (Map.Entry<Integer, Score> e : new TreeMap<Integer, Score>(store.index).entrySet()) {
+                System.out.println("Student: " + e.getKey() + " | Score: " + e.getValue().correct() + "/" + number_questions);
+            }
+            store.close();
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replay a trace recorded with -Dtrace and compare latencies
+     *
+     * @param args replay file [fast]
+     */
+    public static void replay(String args[]) {
+        try {
+            Replay replay = new Replay(Trace.load(new File(args[1])), args.length > 2 && args[2].equals("fast"));
+            replay.run();
+        } catch (IOException e) {
+            System.out.println(e.toString());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Print the live aggregate scores kept by a leader run with
+     * -Dcounters=root
+     *
+     * @param args scores host root questions
+     */
+    public static void scores(String args[]) {
+        Counter counters = new Counter(args[1], args[2], Integer.getInteger("counter.stripes", 8));
+        int number_questions = new Integer(args[3]);
+        try {
+            for (int j = 1; j <= number_questions; j++) {
+                System.out.println("Question: " + j + " | Correct: " + counters.get("q" + j + ".correct")
+                        + "/" + counters.get("q" + j + ".answered"));
+            }
+            System.out.println("Class | Correct: " + counters.get("class.correct")
+                    + "/" + counters.get("class.answered"));
+        } catch (KeeperException e) {
+            System.out.println("Keeper exception when reading scores: " + e.toString());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Delete the stale nodes under the roots of the primitives, once or
+     * every period ms
+     *
+     * @param args reap host [period]
+     */
+    public static void reap(String args[]) {
+        Reaper reaper = new Reaper(args[1], "/app3", "/b1", "/lock", "/election");
+        try {
+            while (true) {
+                reaper.pass();
+                reaper.report();
+                if (args.length < 3) {
+                    break;
+                }
+                Thread.sleep(Long.parseLong(args[2]));
+            }
+        } catch (KeeperException e) {
+            System.out.println("Keeper exception when reaping: " + e.toString());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        reaper.close();
+        System.exit(0);
+    }
+
+    public static void professor(String args[], int number_students, Queue q) {
+        // Generate random integer
+        Random rand = new Random();
+        int idx = rand.nextInt(10);
+        Integer number_questions = new Integer(args[2]);
+        Integer id = new Integer(args[4]);
+        int answers[] = new int [number_questions];
+        String professors[] = new String[10];
+        professors[0] = "Professor 1";
+        professors[1] = "Professor 2";
+        professors[2] = "Professor 3";
+        professors[3] = "Professor 4";
+        professors[4] = "Professor 5";
+        professors[5] = "Professor 6";
+        professors[6] = "Professor 7";
+        professors[7] = "Professor 8";
+        professors[8] = "Professor 9";
+        professors[9] = "Professor 10";
+        for(int a = 0; a < number_questions; a++){ // answers
+            answers[a] = a + 1;
+        }
+
+    	Leader leader = new Leader(args[1],"/election","/leader", idx, professors[idx], answers, number_students, number_questions, q);
+        if (args[3].equals("c")) {
+            grade(args[1], leader, answers, number_students, number_questions, q);
+            return;
+        }
+        try{
+        	//Parks until elected, the watch on the predecessor completes it
+        	boolean success = leader.elect(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        	if (success) {
+        		leader.compute();
+        	}
+        } catch (KeeperException e){
+        	e.printStackTrace();
+        } catch (InterruptedException e){
+        	e.printStackTrace();
+        }
+    }
+
+    /**
+     * Competing consumer mode: every professor grades its share of the
+     * queue shards, and the elected one also collects the grades
+     */
+    public static void grade(String host, final Leader leader, int answers[], final int number_students,
+            final int number_questions, Queue q) {
+        final Grader grader = new Grader(host, "/graders", answers, q);
+        Thread coordinator = new Thread(new Runnable() {
+            public void run() {
+                try{
+                    if (leader.elect(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+                        grader.collect(number_students, number_questions);
+                    }
+                } catch (KeeperException e){
+                    e.printStackTrace();
+                } catch (InterruptedException e){
+                    e.printStackTrace();
+                }
+            }
+        }, "coordinator");
+        coordinator.setDaemon(true);
+        coordinator.start();
+        try{
+            grader.run();
+        } catch (KeeperException e){
+            e.printStackTrace();
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    public static void student(String args[], int number_students, Queue q) {
+        Integer number_questions = new Integer(args[2]);
+        Integer id = new Integer(args[4]);
+        int answers[] = new int [number_questions];
+
+        if (args[3].equals("s")) {
+            Random rand = new Random();
+            int max_solving = 60000; // maximum of 1 minute per question
+            int answer_range = 5;
+
+            for (int i = 0; i < number_questions; i++){
+                try{
+                    System.out.println("I'm thinking to answer question " + (i+1));
+                    Thread.sleep(rand.nextInt(max_solving));
+                    answers[i] = rand.nextInt(answer_range) + 1;
+                    System.out.println("Student: " + id + " | Question: " + (i+1) + " | Solution: " + answers[i]);
+                } catch (InterruptedException e){
+                    e.printStackTrace();
+                }
+            }
+
+            barrier("localhost", "/b1", number_students, id, 0);
+            lock("localhost", 1000, id, answers, q); // 1 second to send answer
+        }
+
+        /*barrier("localhost", "/b2", number_students + 1, id, 1);
+
+        if (args[3].equals("p")) {
+            System.out.println("Professor");
+            for(int a = 0; a < number_questions; a++){ // answers
+                answers[a] = a + 1;
+            }
+
+            for (int i = 0; i < number_students * number_questions; i++) {
+                try{
+                    int r[] = q.consume();
+                    System.out.println("Question: " + r[0] + " | Student: " + r[1]);
+                } catch (KeeperException e){
+                    i--;
+                } catch (InterruptedException e){
+                    e.printStackTrace();
+                }
+            }
+        }*/
+    }
+
+    public static void lock(String host, long wait, int id, int answers[], Queue q) {
+        Lock lock = new Lock(host,"/lock", wait, id, answers, q);
+        lock.outbox = Outbox.of(host, q);
+        try{
+            //Parks until the lock is held, the watch on the predecessor completes it
+            boolean success = lock.lock(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (success) {
+                try {
+                    lock.compute();
+                } finally {
+                    //Hands the lock to the next student now, not when this
+                    //session ends
+                    lock.unlock();
+                }
+            }
+            lock.close();
+        } catch (KeeperException e){
+            e.printStackTrace();
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        } finally {
+            if (lock.outbox != null) {
+                lock.outbox.close();
+            }
+        }
+    }
+
+    public static void barrier(String host, String root, int size, int id, int index) {
+        Barrier b = new Barrier(host, root, new Integer(size));
+        System.out.println("Waiting students to finish the essay (At barrier)");
+        try{
+            boolean flag = b.enter();
+            if(!flag) System.out.println("Error when entering the barrier");
+        } catch (KeeperException e){
+            e.printStackTrace();
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+
+        try{
+            b.leave();
+        } catch (KeeperException e){
+
+        } catch (InterruptedException e){
+
+        }
+        System.out.println("Going to return my essay (Going to lock)");
+    }   
+}
@@ -0,0 +1,15 @@
+export ZK=/home/ufabc/Imagens/projeto/zookeeper/zookeeper-3.4.14
+echo "ZK=$ZK"
+export CP_ZK=.:$ZK'/zookeeper-3.4.14.jar':$ZK'/lib/slf4j-log4j12-1.7.25.jar':$ZK'/lib/slf4j-api-1.7.25.jar':$ZK'/lib/log4j-1.2.17.jar'
+echo "CP=$CP_ZK"
+javac -cp $CP_ZK *.java
+echo "***** Load simulation"
+export SIZE=${1:-10}
+echo "Size = $SIZE"
+export STUDENTS=${2:-1000}
+echo "Students = $STUDENTS"
+export PROFESSORS=${3:-3}
+echo "Professors = $PROFESSORS"
+export THINK=${4:-0}
+echo "Think time = $THINK ms"
+java -cp $CP_ZK -Dlog4j.configuration=file:$ZK/conf/log4j.properties SyncPrimitive simulate localhost $SIZE $STUDENTS $PROFESSORS $THINK
@@ -0,0 +1,463 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs.Ids;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * Tests of the SyncPrimitive recipes, run against a ZooKeeper server
+ * inside the test JVM and against the in-memory backend. Each test is a
+ * method named test*; the run fails if any of them throws.
+ */
+public class SyncPrimitiveTests {
+
+    static final AtomicInteger roots = new AtomicInteger();
+    static String address;
+
+    public static void main(String args[]) throws Exception {
+        start();
+        int failed = 0;
+        for (java.lang.reflect.Method m : SyncPrimitiveTests.class.getDeclaredMethods()) {
+            if (!m.getName().startsWith("test") || args.length > 0 && !Arrays.asList(args).contains(m.getName())) {
+                continue;
+            }
+            try {
+                m.invoke(null);
+                System.out.println("PASS " + m.getName());
+            } catch (java.lang.reflect.InvocationTargetException e) {
+                failed++;
+                System.out.println("FAIL " + m.getName() + ": " + e.getCause());
+                e.getCause().printStackTrace(System.out);
+            }
+        }
+        System.out.println(failed == 0 ? "All tests passed" : failed + " tests failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Fresh root node, so tests never see each other's leftovers
+     */
+    static String root(String name) {
+        return "/test-" + name + "-" + roots.incrementAndGet();
+    }
+
+    /**
+     * Start a standalone server on a free local port
+     *
+     * @throws Exception
+     */
+    static void start() throws Exception {
+        File dir = Files.createTempDirectory("zk-test").toFile();
+        ServerSocket s = new ServerSocket(0);
+        int port = s.getLocalPort();
+        s.close();
+        ZooKeeperServer server = new ZooKeeperServer(dir, dir, 2000);
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", port), 100);
+        factory.startup(server);
+        address = "127.0.0.1:" + port;
+    }
+
+    static SyncPrimitive.Backend connect(String address) throws Exception {
+        SyncPrimitive.Backend b = SyncPrimitive.backend(address, new Watcher() {
+            public void process(WatchedEvent event) {
+            }
+        });
+        while (!b.getState().isConnected()) {
+            Thread.sleep(10);
+        }
+        return b;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void equal(Object expected, Object actual, String what) {
+        check(expected == null ? actual == null : expected.equals(actual),
+                what + ": expected " + expected + " but was " + actual);
+    }
+
+    /**
+     * Names and stats, stripped of zxids and times, that a run of creates,
+     * deletes, sequential creates and multis leaves on b
+     *
+     * @param b
+     * @param root
+     * @return
+     * @throws Exception
+     */
+    static List<String> sequence(SyncPrimitive.Backend b, String root) throws Exception {
+        List<String> seen = new ArrayList<String>();
+        b.create(root, new byte[0], CreateMode.PERSISTENT);
+        String first = b.create(root + "/e-", new byte[1], CreateMode.PERSISTENT_SEQUENTIAL);
+        seen.add(first.substring(root.length()) + " " + stat(b, root));
+        b.delete(first, -1);
+        seen.add("deleted " + stat(b, root));
+        String second = b.create(root + "/e-", new byte[2], CreateMode.PERSISTENT_SEQUENTIAL);
+        seen.add(second.substring(root.length()) + " " + stat(b, root));
+        b.setData(second, new byte[3], 0);
+        seen.add("set " + stat(b, second));
+        List<OpResult> results = b.multi(Arrays.asList(
+                Op.create(root + "/e-", new byte[4], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+                Op.delete(second, 1),
+                Op.check(root, 0),
+                Op.setData(root, new byte[5], 0)));
+        seen.add(((OpResult.CreateResult) results.get(0)).getPath().substring(root.length()) + " "
+                + stat(b, root));
+        try {
+            b.multi(Arrays.asList(
+                    Op.create(root + "/e-", new byte[6], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT_SEQUENTIAL),
+                    Op.check(root, 0)));
+            seen.add("failed multi went through");
+        } catch (KeeperException e) {
+            seen.add("failed multi " + e.code() + " " + stat(b, root));
+        }
+        String third = b.create(root + "/e-", new byte[7], CreateMode.EPHEMERAL_SEQUENTIAL);
+        seen.add(third.substring(root.length()) + " " + stat(b, root));
+        seen.add("children " + b.getChildren(root, false).size());
+        return seen;
+    }
+
+    static String stat(SyncPrimitive.Backend b, String path) throws Exception {
+        Stat s = b.exists(path, false);
+        return "version " + s.getVersion() + " cversion " + s.getCversion() + " aversion " + s.getAversion()
+                + " children " + s.getNumChildren() + " length " + s.getDataLength() + " ephemeral "
+                + (s.getEphemeralOwner() != 0);
+    }
+
+    /**
+     * The in-memory backend names sequential children and reports stats
+     * as a ZooKeeper server does
+     */
+    static void testBackendsAgree() throws Exception {
+        SyncPrimitive.Backend zk = connect(address);
+        SyncPrimitive.Backend memory = connect("memory:test");
+        try {
+            String root = root("backends");
+            List<String> expected = sequence(zk, root);
+            List<String> actual = sequence(memory, root);
+            for (int i = 0; i < expected.size(); i++) {
+                equal(expected.get(i), actual.get(i), "step " + i);
+            }
+        } finally {
+            zk.close();
+            memory.close();
+        }
+    }
+
+    /**
+     * Invoking an operation on the metrics MBean, which has none, fails
+     * the way JMX clients expect
+     */
+    static void testMetricsHaveNoOperations() throws Exception {
+        SyncPrimitive.Metrics.of("test").count("calls");
+        try {
+            ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("SyncPrimitive:type=Metrics,name=test"), "reset", null, null);
+            check(false, "invoke went through");
+        } catch (ReflectionException e) {
+            check(e.getTargetException() instanceof NoSuchMethodException, "cause " + e.getTargetException());
+        }
+        equal(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("SyncPrimitive:type=Metrics,name=test"), "calls"), "calls");
+    }
+
+    static Future<Integer> await(ExecutorService pool, final SyncPrimitive.CyclicBarrier b) {
+        return pool.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return b.await();
+            }
+        });
+    }
+
+    /**
+     * Every round releases its participants, each with its own arrival
+     * order
+     */
+    static void testCyclicBarrierRounds() throws Exception {
+        String root = root("cyclic");
+        ExecutorService pool = Executors.newCachedThreadPool();
+        SyncPrimitive.CyclicBarrier barriers[] = new SyncPrimitive.CyclicBarrier[3];
+        for (int i = 0; i < barriers.length; i++) {
+            barriers[i] = new SyncPrimitive.CyclicBarrier(address, root, barriers.length, "p" + i);
+        }
+        try {
+            for (int round = 0; round < 5; round++) {
+                List<Future<Integer>> arrivals = new ArrayList<Future<Integer>>();
+                for (SyncPrimitive.CyclicBarrier b : barriers) {
+                    arrivals.add(await(pool, b));
+                }
+                boolean seen[] = new boolean[barriers.length];
+                for (Future<Integer> f : arrivals) {
+                    seen[f.get(10, TimeUnit.SECONDS)] = true;
+                }
+                for (int i = 0; i < seen.length; i++) {
+                    check(seen[i], "round " + round + " has no arrival " + i);
+                }
+            }
+        } finally {
+            for (SyncPrimitive.CyclicBarrier b : barriers) {
+                b.close();
+            }
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A participant that joined while a round filled arrives past its
+     * places, and waits for the next round instead of failing
+     */
+    static void testCyclicBarrierLateJoiner() throws Exception {
+        String root = root("cyclic-late");
+        ExecutorService pool = Executors.newCachedThreadPool();
+        SyncPrimitive.CyclicBarrier a = new SyncPrimitive.CyclicBarrier(address, root, 2, "a");
+        SyncPrimitive.CyclicBarrier b = new SyncPrimitive.CyclicBarrier(address, root, 2, "b");
+        SyncPrimitive.CyclicBarrier late = new SyncPrimitive.CyclicBarrier(address, root, 2, "late");
+        try {
+            Future<Integer> first = await(pool, a);
+            await(pool, b).get(10, TimeUnit.SECONDS);
+            first.get(10, TimeUnit.SECONDS);
+            Future<Integer> joined = await(pool, late);
+            Thread.sleep(200);
+            check(!joined.isDone(), "late arrival passed a full round");
+            int index = await(pool, a).get(10, TimeUnit.SECONDS);
+            equal(1 - index, joined.get(10, TimeUnit.SECONDS), "arrival of the late participant");
+            equal(2L, late.generation, "round of the late participant");
+        } finally {
+            a.close();
+            b.close();
+            late.close();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * A round still starts when the arrival node of the round before is
+     * gone, as when the reaper took it
+     */
+    static void testCyclicBarrierReapedArrival() throws Exception {
+        String root = root("cyclic-reaped");
+        ExecutorService pool = Executors.newCachedThreadPool();
+        SyncPrimitive.CyclicBarrier a = new SyncPrimitive.CyclicBarrier(address, root, 2, "a");
+        SyncPrimitive.CyclicBarrier b = new SyncPrimitive.CyclicBarrier(address, root, 2, "b");
+        try {
+            Future<Integer> first = await(pool, a);
+            await(pool, b).get(10, TimeUnit.SECONDS);
+            first.get(10, TimeUnit.SECONDS);
+            a.zk.delete(a.arrival, -1);
+            Future<Integer> second = await(pool, a);
+            await(pool, b).get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+        } finally {
+            a.close();
+            b.close();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Submissions come back whole from their chunks, in any order, with
+     * negative and large values, and a cut chunk is rejected
+     */
+    static void testSubmissionEncoding() throws Exception {
+        int answers[] = new int[100];
+        for (int i = 0; i < answers.length; i++) {
+            answers[i] = i % 3 == 0 ? -i : i * 1000003;
+        }
+        answers[1] = Integer.MIN_VALUE;
+        answers[2] = Integer.MAX_VALUE;
+        List<byte[]> chunks = SyncPrimitive.Submission.encode(Integer.MAX_VALUE, answers, 64);
+        check(chunks.size() > 1, "one chunk only");
+        SyncPrimitive.Reassembler r = new SyncPrimitive.Reassembler();
+        SyncPrimitive.Submission whole = null;
+        for (int c = chunks.size() - 1; c >= 0; c--) {
+            check(chunks.get(c).length <= 64, "chunk of " + chunks.get(c).length + " bytes");
+            check(whole == null, "whole before the last chunk");
+            whole = r.add(chunks.get(c));
+        }
+        check(whole != null, "never whole");
+        equal(Integer.MAX_VALUE, whole.id, "id");
+        int decoded[] = new int[answers.length];
+        for (int i = 0; i < whole.questions.length; i++) {
+            decoded[whole.questions[i]] = whole.values[i];
+        }
+        check(Arrays.equals(answers, decoded), "answers " + Arrays.toString(decoded));
+        byte cut[] = Arrays.copyOf(chunks.get(0), chunks.get(0).length - 1);
+        try {
+            SyncPrimitive.Submission.decode(cut);
+            check(false, "cut chunk decoded");
+        } catch (IllegalArgumentException e) {
+            // Rejected
+        }
+    }
+
+    /**
+     * The results store keeps its records across reopening, drops what
+     * follows a record whose CRC does not match, and a follower picks up
+     * records as they are appended
+     */
+    static void testResultsRecovery() throws Exception {
+        File file = File.createTempFile("results", ".bin");
+        file.delete();
+        try {
+            SyncPrimitive.Results r = SyncPrimitive.Results.open(file);
+            for (int i = 0; i < 10; i++) {
+                r.append(i, i, i % 2 == 0, i);
+            }
+            equal(10L, r.size(), "records appended");
+            r.close();
+            // Corrupt the seventh record, as a crash while writing it would
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(SyncPrimitive.Results.RECORD * 7 + 4);
+            raf.write(0xFF);
+            raf.close();
+            r = SyncPrimitive.Results.open(file);
+            equal(6L, r.size(), "records recovered");
+            check(r.index.containsKey(5) && !r.index.containsKey(6), "students indexed " + r.index.keySet());
+            SyncPrimitive.Results follower = SyncPrimitive.Results.follow(file);
+            equal(6L, follower.size(), "records followed");
+            r.append(42, 1, true, 0);
+            check(follower.scan(), "append not seen");
+            equal(7L, follower.size(), "records followed after the append");
+            check(follower.index.containsKey(42), "appended student not indexed");
+            follower.close();
+            r.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A leader that resumes the checkpoint takes over the progress saved
+     * before, and the leader it replaced can no longer save
+     */
+    static void testCheckpointFencing() throws Exception {
+        String root = root("election");
+        SyncPrimitive.Queue q = new SyncPrimitive.Queue(address, root("checkpoint-queue"), 2);
+        SyncPrimitive.Leader first = new SyncPrimitive.Leader(address, root, root + "-leader", 0, "first",
+                new int[0], 0, 0, q);
+        SyncPrimitive.Leader second = new SyncPrimitive.Leader(address, root, root + "-leader", 1, "second",
+                new int[0], 0, 0, q);
+        try {
+            SyncPrimitive.Checkpoint c = first.resume();
+            equal(2, c.watermarks.length, "shards");
+            c.watermarks[1] = 41;
+            c.scores.put(7, new SyncPrimitive.Score(3));
+            c.scores.get(7).record(2, true);
+            first.save(c);
+            SyncPrimitive.Checkpoint taken = second.resume();
+            equal(41L, taken.watermarks[1], "watermark");
+            equal(-1L, taken.watermarks[0], "untouched watermark");
+            equal(1, taken.scores.get(7).correct(), "score");
+            try {
+                first.save(c);
+                check(false, "deposed leader saved");
+            } catch (KeeperException.BadVersionException e) {
+                // Fenced off
+            }
+            second.save(taken);
+        } finally {
+            first.close();
+            second.close();
+            q.close();
+        }
+    }
+
+    static int elements(SyncPrimitive.Queue q) throws Exception {
+        return q.getChildren(q.root, false).size();
+    }
+
+    /**
+     * A batch sent again after its reply was lost is found written by the
+     * marker instead of written twice
+     */
+    static void testOutboxLostReply() throws Exception {
+        SyncPrimitive.Queue q = new SyncPrimitive.Queue(address, root("outbox"));
+        SyncPrimitive.Outbox o = new SyncPrimitive.Outbox(address, q, "p", 100, 5, 1, null);
+        try {
+            List<CompletableFuture<Boolean>> written = new ArrayList<CompletableFuture<Boolean>>();
+            for (int i = 0; i < 50; i++) {
+                written.add(o.submit(i, new int[] {i}));
+            }
+            for (CompletableFuture<Boolean> f : written) {
+                check(f.get(10, TimeUnit.SECONDS), "submission not written");
+            }
+            equal(50, elements(q), "elements");
+            // Forget the last batch was written, as if its reply was lost
+            SyncPrimitive.Outbox.Entry e = new SyncPrimitive.Outbox.Entry(49, new int[] {49});
+            e.chunks = q.chunks(e.id, e.answers);
+            synchronized (o) {
+                e.seq = o.writtenSeq;
+                o.writtenSeq--;
+                o.sentSeq = o.writtenSeq;
+                o.sentChunk = o.writtenChunk;
+                o.sentVersion = o.version - 1;
+                o.unacked.add(e);
+            }
+            o.send(new ArrayList<SyncPrimitive.Outbox.Entry>(Arrays.asList(e)));
+            check(e.written.get(10, TimeUnit.SECONDS), "resent submission not written");
+            equal(50, elements(q), "elements after the resend");
+        } finally {
+            o.close();
+            q.close();
+        }
+    }
+
+    /**
+     * A spill file replayed after a crash writes only the submissions the
+     * marker does not count as written
+     */
+    static void testOutboxSpillReplay() throws Exception {
+        SyncPrimitive.Queue q = new SyncPrimitive.Queue(address, root("outbox"));
+        File spill = File.createTempFile("outbox", ".spill");
+        try {
+            SyncPrimitive.Outbox o = new SyncPrimitive.Outbox(address, q, "p", 100, 5, 1, null);
+            o.submit(0, new int[] {0}).get(10, TimeUnit.SECONDS);
+            o.close();
+            // What a producer that crashed after the first was written left
+            FileChannel channel = FileChannel.open(spill.toPath(), StandardOpenOption.WRITE);
+            for (int i = 0; i < 3; i++) {
+                SyncPrimitive.Outbox.Entry e = new SyncPrimitive.Outbox.Entry(i, new int[] {i});
+                e.seq = i + 1;
+                channel.write(e.record());
+            }
+            channel.close();
+            o = new SyncPrimitive.Outbox(address, q, "p", 100, 5, 1, spill);
+            o.close();
+            equal(3, elements(q), "elements");
+            equal(0L, spill.length(), "spill file after draining");
+        } finally {
+            spill.delete();
+            q.close();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+export ZK=/home/ufabc/Imagens/projeto/zookeeper/zookeeper-3.4.14
+echo "ZK=$ZK"
+export CP_ZK=$ZK'/zookeeper-3.4.14.jar':$ZK'/lib/audience-annotations-0.5.0.jar':$ZK'/lib/slf4j-log4j12-1.7.25.jar':$ZK'/lib/slf4j-api-1.7.25.jar':$ZK'/lib/log4j-1.2.17.jar'
+echo "CP=$CP_ZK"
+mkdir -p classes
+javac -cp $CP_ZK -d classes ../Codigos/SyncPrimitive.java *.java
+echo "***** SyncPrimitive tests"
+# Test names as arguments run only those, e.g. testBackendsAgree
+java -cp classes:$CP_ZK -Dlog4j.configuration=file:$ZK/conf/log4j.properties SyncPrimitiveTests "$@"